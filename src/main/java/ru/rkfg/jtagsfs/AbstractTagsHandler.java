@@ -3,8 +3,6 @@ package ru.rkfg.jtagsfs;
 import static ru.rkfg.jtagsfs.Consts.*;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -13,30 +11,41 @@ import net.fusejna.ErrorCodes;
 import org.hibernate.Session;
 
 import ru.rkfg.jtagsfs.FSHandlerManager.FSHandlerException;
+import ru.rkfg.jtagsfs.TagDictionary.TagInfo;
 import ru.rkfg.jtagsfs.domain.Tag;
 
 public abstract class AbstractTagsHandler extends UnsupportedFSHandler {
 
+    protected TagDictionary tagDictionary = TagDictionary.INSTANCE;
+
     protected void addTag(final String newTag) {
         addTag(newTag, null);
     }
 
     protected void addTag(final String newTag, final String parent) {
-        HibernateUtil.exec(new HibernateCallback<Void>() {
+        if (tagDictionary.get(newTag) != null) {
+            return;
+        }
+        TagInfo added = HibernateUtil.exec(new HibernateCallback<TagInfo>() {
 
-            public Void run(Session session) {
+            public TagInfo run(Session session) {
                 Tag tag = getTagByName(newTag, session);
                 if (tag == null) {
                     tag = new Tag(newTag);
-                    if (parent != null) {
-                        Tag parentTag = getTagByName(parent, session);
-                        tag.setParent(parentTag);
+                    Long parentId = parent == null ? null : tagDictionary.getId(parent);
+                    if (parentId != null) {
+                        tag.setParent((Tag) session.load(Tag.class, parentId));
                     }
                     session.save(tag);
+                    return new TagInfo(tag.getId(), newTag, parentId);
                 }
                 return null;
             }
         });
+        if (added != null) {
+            tagDictionary.put(added);
+            MetadataEventBus.INSTANCE.publish(MetadataEvent.tagCreated(added.getId(), added.getName()));
+        }
     }
 
     protected void addTagForFilepath(Filepath filepath) throws FSHandlerException {
@@ -52,11 +61,12 @@ public abstract class AbstractTagsHandler extends UnsupportedFSHandler {
     }
 
     protected int deleteTag(final String delTag) {
+        final Long id = tagDictionary.getId(delTag);
         try {
             HibernateUtil.exec(new HibernateCallback<Void>() {
 
                 public Void run(Session session) {
-                    Tag tag = getTagByName(delTag, session);
+                    Tag tag = id == null ? null : (Tag) session.get(Tag.class, id);
                     if (tag == null) {
                         throw new RuntimeException();
                     }
@@ -67,11 +77,15 @@ public abstract class AbstractTagsHandler extends UnsupportedFSHandler {
         } catch (RuntimeException e) {
             return -ErrorCodes.ENOENT();
         }
+        tagDictionary.remove(id);
+        TagIndex.INSTANCE.removeTag(id);
+        MetadataEventBus.INSTANCE.publish(MetadataEvent.tagDeleted(id, delTag));
         return 0;
     }
 
     protected Tag getTagByName(String tagName, Session session) {
-        return (Tag) session.createQuery("from Tag t where t.name = :tag").setString("tag", tagName).uniqueResult();
+        Long id = tagDictionary.getId(tagName);
+        return id == null ? null : (Tag) session.get(Tag.class, id);
     }
 
     protected Set<String> getTags(final String[] exclude) {
@@ -79,50 +93,35 @@ public abstract class AbstractTagsHandler extends UnsupportedFSHandler {
     }
 
     protected Set<String> getTags(final String[] exclude, final boolean strict) {
-        return HibernateUtil.exec(new HibernateCallback<Set<String>>() {
-
-            @SuppressWarnings("unchecked")
-            public Set<String> run(Session session) {
-                Set<String> result = new HashSet<String>();
-                List<Tag> tags;
-                HashMap<String, Object> params = new HashMap<String, Object>();
-                String query = "select t from Tag t left join fetch t.parent p where 1=1";
-                if (exclude != null && exclude.length > 0) {
-                    query += " and t.name not in (:exc)";
-                    params.put("exc", exclude);
-                }
-                if (strict) {
-                    if (exclude.length > 0) {
-                        query += " and t.parent.name = :p";
-                        params.put("p", exclude[exclude.length - 1]);
-                    } else {
-                        query += " and t.parent is null";
-                    }
-                } else {
-                    query += " and ((t.parent is not null and p.name in (:p)) or t.parent is null)";
-                    params.put("p", exclude);
+        return tagDictionary.getTags(exclude, strict);
+    }
+
+    protected void renameTag(final Filepath from, final Filepath to) throws FSHandlerException {
+        TagInfo renamed = HibernateUtil.exec(new HibernateCallback<TagInfo>() {
+
+            @Override
+            public TagInfo run(Session session) {
+                String fromTagName = from.getPathLast();
+                String toTagName = to.getPathLast();
+                Tag fromTag = getTagByName(fromTagName, session);
+                if (fromTag == null) {
+                    return null;
                 }
-                tags = session.createQuery(query).setProperties(params).list();
-                for (Tag tag : tags) {
-                    result.add(tag.getName());
+                fromTag.setName(toTagName);
+                Long parentId = null;
+                if (to.getPathLength() > 1) {
+                    String toParentTagName = to.getPath()[to.getPathLength() - 2];
+                    parentId = tagDictionary.getId(toParentTagName);
                 }
-                return result;
+                fromTag.setParent(parentId == null ? null : (Tag) session.load(Tag.class, parentId));
+                return new TagInfo(fromTag.getId(), toTagName, parentId);
             }
         });
-    }
-
-    protected void renameTag(final Filepath from, final Filepath to, Session session) {
-        String fromTagName = from.getPathLast();
-        String toTagName = to.getPathLast();
-        Tag fromTag = getTagByName(fromTagName, session);
-        fromTag.setName(toTagName);
-        if (to.getPathLength() > 1) {
-            String toParentTagName = to.getPath()[to.getPathLength() - 2];
-            Tag parentTag = getTagByName(toParentTagName, session);
-            fromTag.setParent(parentTag);
-        } else {
-            fromTag.setParent(null);
+        if (renamed == null) {
+            throw new FSHandlerException("notfound");
         }
+        tagDictionary.put(renamed);
+        MetadataEventBus.INSTANCE.publish(MetadataEvent.tagRenamed(renamed.getId(), from.getPathLast(), renamed.getName()));
     }
 
 }
@@ -0,0 +1,41 @@
+package ru.rkfg.jtagsfs;
+
+import static ru.rkfg.jtagsfs.Consts.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.fusejna.DirectoryFiller;
+
+// Passes names to the FUSE filler in fixed-size batches so the listing never has to be held in memory as a whole.
+public class BatchFiller {
+    private DirectoryFiller filler;
+    private List<String> batch = new ArrayList<String>(READDIRBATCH);
+    private List<String> recorded;
+
+    public BatchFiller(DirectoryFiller filler) {
+        this.filler = filler;
+    }
+
+    // all names added from now on are also appended to the given list
+    public void record(List<String> names) {
+        recorded = names;
+    }
+
+    public void add(String name) {
+        batch.add(name);
+        if (recorded != null) {
+            recorded.add(name);
+        }
+        if (batch.size() >= READDIRBATCH) {
+            flush();
+        }
+    }
+
+    public void flush() {
+        if (!batch.isEmpty()) {
+            filler.add(batch);
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package ru.rkfg.jtagsfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Size and memory bounded cache with W-TinyLFU eviction: new entries go to a small LRU window, entries leaving the window
+// have to win against the main space victim by the estimated access frequency to stay. The main space is a segmented LRU
+// (probation and protected queues). Entries expire after not being accessed for the given time, expired entries are
+// removed a few at a time by the regular operations so there are no full sweeps. The cache is split into segments with
+// their own locks.
+public class BoundedCache<K, V> {
+
+    public interface Weigher<K, V> {
+        int weigh(K key, V value);
+    }
+
+    // called for every removed entry, evicted, expired or removed explicitly, after the cache segment is unlocked by the
+    // operation that removed it
+    public interface RemovalListener<K, V> {
+        void onRemoval(K key, V value);
+    }
+
+    // memory budget shared by several caches, a cache that adds an entry over the budget evicts as much of its own
+    // entries as the entry took
+    public static class Budget {
+        private long max;
+        private AtomicLong used = new AtomicLong();
+
+        public Budget(long max) {
+            this.max = max;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getUsed() {
+            return used.get();
+        }
+
+        boolean isExceeded() {
+            return used.get() > max;
+        }
+    }
+
+    private static final int SEGMENTS = 16;
+    // expired entries removed from every queue per operation at most
+    private static final int EXPIRESTEPS = 4;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static class Node<K, V> {
+        K key;
+        V value;
+        int hash;
+        int weight;
+        long accessTime;
+        int queue;
+        Node<K, V> prev;
+        Node<K, V> next;
+    }
+
+    private static class AccessQueue<K, V> {
+        Node<K, V> head;
+        Node<K, V> tail;
+        int size;
+
+        void addLast(Node<K, V> node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            size++;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            size--;
+        }
+
+        void moveToEnd(Node<K, V> node) {
+            if (tail != node) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        Node<K, V> pollFirst() {
+            Node<K, V> node = head;
+            if (node != null) {
+                remove(node);
+            }
+            return node;
+        }
+    }
+
+    private class Segment {
+        Map<K, Node<K, V>> map = new HashMap<K, Node<K, V>>();
+        List<AccessQueue<K, V>> queues = new ArrayList<AccessQueue<K, V>>();
+        FrequencySketch sketch;
+        int maxEntries;
+        long maxWeight;
+        int maxWindow;
+        int maxProtected;
+        long weight;
+        // removed entries the listener hasn't been called for yet
+        List<Node<K, V>> removed = new ArrayList<Node<K, V>>();
+        volatile boolean hasRemoved;
+
+        Segment(int maxEntries, long maxWeight) {
+            this.maxEntries = maxEntries;
+            this.maxWeight = maxWeight;
+            maxWindow = Math.max(1, maxEntries / 100);
+            maxProtected = (maxEntries - maxWindow) * 4 / 5;
+            sketch = new FrequencySketch(maxEntries);
+            for (int i = 0; i <= PROTECTED; i++) {
+                queues.add(new AccessQueue<K, V>());
+            }
+        }
+
+        synchronized V get(K key, int hash, long now) {
+            expire(now);
+            sketch.increment(hash);
+            Node<K, V> node = map.get(key);
+            if (node == null) {
+                return null;
+            }
+            if (now - node.accessTime > expireAfterAccess) {
+                evict(node);
+                expirations.incrementAndGet();
+                return null;
+            }
+            node.accessTime = now;
+            onAccess(node);
+            return node.value;
+        }
+
+        synchronized void put(K key, int hash, V value, int nodeWeight, long now) {
+            sketch.increment(hash);
+            Node<K, V> node = map.get(key);
+            long added;
+            if (node != null) {
+                added = nodeWeight - node.weight;
+                weight += added;
+                addUsed(added);
+                node.value = value;
+                node.weight = nodeWeight;
+                node.accessTime = now;
+                onAccess(node);
+            } else {
+                node = new Node<K, V>();
+                node.key = key;
+                node.value = value;
+                node.hash = hash;
+                node.weight = nodeWeight;
+                node.accessTime = now;
+                node.queue = WINDOW;
+                map.put(key, node);
+                queues.get(WINDOW).addLast(node);
+                added = nodeWeight;
+                weight += nodeWeight;
+                addUsed(nodeWeight);
+            }
+            evictOverflow(added);
+            expire(now);
+        }
+
+        synchronized V remove(K key) {
+            Node<K, V> node = map.get(key);
+            if (node == null) {
+                return null;
+            }
+            evict(node);
+            return node.value;
+        }
+
+        synchronized void clear() {
+            if (removalListener != null) {
+                removed.addAll(map.values());
+                hasRemoved = !removed.isEmpty();
+            }
+            map.clear();
+            for (int i = 0; i <= PROTECTED; i++) {
+                queues.set(i, new AccessQueue<K, V>());
+            }
+            addUsed(-weight);
+            weight = 0;
+        }
+
+        private void onAccess(Node<K, V> node) {
+            if (node.queue == PROBATION) {
+                // a second hit in the main space makes the entry protected
+                queues.get(PROBATION).remove(node);
+                node.queue = PROTECTED;
+                queues.get(PROTECTED).addLast(node);
+                while (queues.get(PROTECTED).size > maxProtected) {
+                    Node<K, V> demoted = queues.get(PROTECTED).pollFirst();
+                    demoted.queue = PROBATION;
+                    queues.get(PROBATION).addLast(demoted);
+                }
+            } else {
+                queues.get(node.queue).moveToEnd(node);
+            }
+        }
+
+        // Evicts the entries over the limits of the segment. Over the shared budget the segment only gives back what the
+        // put added, the other caches evict their own share when they grow.
+        private void evictOverflow(long added) {
+            long debt = budget == null ? 0 : added;
+            AccessQueue<K, V> window = queues.get(WINDOW);
+            AccessQueue<K, V> probation = queues.get(PROBATION);
+            while (window.size > maxWindow) {
+                Node<K, V> candidate = window.pollFirst();
+                candidate.queue = PROBATION;
+                probation.addLast(candidate);
+            }
+            while (map.size() > maxEntries || weight > maxWeight || debt > 0 && budget.isExceeded() && map.size() > 1) {
+                // the latest arrival to the probation queue competes with its oldest entry
+                Node<K, V> victim = probation.head;
+                Node<K, V> candidate = probation.tail;
+                if (victim == null) {
+                    victim = queues.get(PROTECTED).head != null ? queues.get(PROTECTED).head : window.head;
+                } else if (sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+                    // the candidate isn't accessed more often than the victim, it's rejected
+                    victim = candidate;
+                }
+                evict(victim);
+                debt -= victim.weight;
+                evictions.incrementAndGet();
+            }
+        }
+
+        private void expire(long now) {
+            for (AccessQueue<K, V> queue : queues) {
+                for (int i = 0; i < EXPIRESTEPS && queue.head != null && now - queue.head.accessTime > expireAfterAccess; i++) {
+                    evict(queue.head);
+                    expirations.incrementAndGet();
+                }
+            }
+        }
+
+        private void evict(Node<K, V> node) {
+            queues.get(node.queue).remove(node);
+            map.remove(node.key);
+            weight -= node.weight;
+            addUsed(-node.weight);
+            if (removalListener != null) {
+                removed.add(node);
+                hasRemoved = true;
+            }
+        }
+
+        // calls the listener for the removed entries outside of the lock
+        void notifyRemoved() {
+            if (!hasRemoved) {
+                return;
+            }
+            List<Node<K, V>> nodes;
+            synchronized (this) {
+                nodes = removed;
+                removed = new ArrayList<Node<K, V>>();
+                hasRemoved = false;
+            }
+            RemovalListener<K, V> listener = removalListener;
+            if (listener != null) {
+                for (Node<K, V> node : nodes) {
+                    listener.onRemoval(node.key, node.value);
+                }
+            }
+        }
+    }
+
+    private String name;
+    private List<Segment> segments = new ArrayList<Segment>(SEGMENTS);
+    private long expireAfterAccess;
+    private Weigher<K, V> weigher;
+    private volatile RemovalListener<K, V> removalListener;
+    private Budget budget;
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+    private AtomicLong expirations = new AtomicLong();
+
+    public BoundedCache(String name, int maxEntries, long maxWeight, long expireAfterAccess, Weigher<K, V> weigher) {
+        this(name, maxEntries, maxWeight, expireAfterAccess, weigher, null);
+    }
+
+    public BoundedCache(String name, int maxEntries, long maxWeight, long expireAfterAccess, Weigher<K, V> weigher,
+            Budget budget) {
+        this.name = name;
+        this.budget = budget;
+        this.expireAfterAccess = expireAfterAccess;
+        this.weigher = weigher;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments.add(new Segment(Math.max(1, (maxEntries + SEGMENTS - 1) / SEGMENTS), Math.max(1, maxWeight / SEGMENTS)));
+        }
+    }
+
+    private void addUsed(long delta) {
+        if (budget != null) {
+            budget.used.addAndGet(delta);
+        }
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        return hash ^ hash >>> 16;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments.get(hash >>> 28 & SEGMENTS - 1);
+    }
+
+    public V get(K key) {
+        int hash = spread(key.hashCode());
+        Segment segment = segmentFor(hash);
+        V result = segment.get(key, hash, System.currentTimeMillis());
+        segment.notifyRemoved();
+        (result == null ? misses : hits).incrementAndGet();
+        return result;
+    }
+
+    public void put(K key, V value) {
+        int hash = spread(key.hashCode());
+        Segment segment = segmentFor(hash);
+        segment.put(key, hash, value, weigher.weigh(key, value), System.currentTimeMillis());
+        segment.notifyRemoved();
+    }
+
+    public V remove(K key) {
+        int hash = spread(key.hashCode());
+        Segment segment = segmentFor(hash);
+        V result = segment.remove(key);
+        segment.notifyRemoved();
+        return result;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+            segment.notifyRemoved();
+        }
+    }
+
+    public void setRemovalListener(RemovalListener<K, V> removalListener) {
+        this.removalListener = removalListener;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        int result = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                result += segment.map.size();
+            }
+        }
+        return result;
+    }
+
+    public long weight() {
+        long result = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                result += segment.weight;
+            }
+        }
+        return result;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+}
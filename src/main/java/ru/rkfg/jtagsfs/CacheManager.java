@@ -2,104 +2,332 @@ package ru.rkfg.jtagsfs;
 
 import static ru.rkfg.jtagsfs.Consts.*;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ru.rkfg.jtagsfs.FSHandlerManager.FSHandlerFileException;
+import ru.rkfg.jtagsfs.MetadataEventBus.MetadataListener;
 
 public enum CacheManager {
     INSTANCE;
 
-    private Map<String, CachedFile> fileCache = new HashMap<String, CachedFile>();
-    private Map<String, LockableFile> fileStreamCache = new HashMap<String, LockableFile>();
-    private Set<String> nonExistent = new HashSet<String>();
+    // Cached paths by the tags and the file name they mention. The keys of a path are taken from its parsed components
+    // when it's added and remembered until it's removed, so the path is never split again. The paths are kept in
+    // segments by the key and the updates of the same path are serialized by a striped lock, so the paths of unrelated
+    // tags and names don't contend.
+    private static class KeyIndex {
+
+        private static class Segment {
+            private Map<String, Set<String>> paths = new HashMap<String, Set<String>>();
+
+            synchronized void add(String key, String strPath) {
+                Set<String> keyPaths = paths.get(key);
+                if (keyPaths == null) {
+                    keyPaths = new HashSet<String>();
+                    paths.put(key, keyPaths);
+                }
+                keyPaths.add(strPath);
+            }
+
+            synchronized void remove(String key, String strPath) {
+                Set<String> keyPaths = paths.get(key);
+                if (keyPaths != null && keyPaths.remove(strPath) && keyPaths.isEmpty()) {
+                    paths.remove(key);
+                }
+            }
+
+            synchronized Set<String> take(String key) {
+                Set<String> keyPaths = paths.remove(key);
+                return keyPaths == null ? new HashSet<String>() : keyPaths;
+            }
+
+            synchronized void clear() {
+                paths.clear();
+            }
+        }
+
+        private static final int SEGMENTS = 64;
+
+        private Segment[] byTag = new Segment[SEGMENTS];
+        private Segment[] byName = new Segment[SEGMENTS];
+        private Object[] pathLocks = new Object[LOCKSTRIPES];
+        // the tags of the path and its file name last
+        private ConcurrentMap<String, String[]> keysByPath = new ConcurrentHashMap<String, String[]>();
 
-    private Timer cleanupTimer = new Timer("file cache cleanup");
+        KeyIndex() {
+            for (int i = 0; i < SEGMENTS; i++) {
+                byTag[i] = new Segment();
+                byName[i] = new Segment();
+            }
+            for (int i = 0; i < pathLocks.length; i++) {
+                pathLocks[i] = new Object();
+            }
+        }
+
+        private static Segment segment(Segment[] segments, String key) {
+            int hash = key.hashCode() * 0x9e3779b9;
+            return segments[(hash ^ hash >>> 16) & SEGMENTS - 1];
+        }
+
+        private Object pathLock(String strPath) {
+            return pathLocks[(strPath.hashCode() & 0x7fffffff) % pathLocks.length];
+        }
+
+        // The path of the file with the given name in the tags directory. Returns the registration, it's only removed by
+        // the one that made it so a late removal can't drop a newer one.
+        public String[] add(String strPath, Filepath directory, String name) {
+            String[] path = directory.getPath();
+            String[] keys = new String[path.length + 1];
+            int count = 0;
+            for (String component : path) {
+                if (!component.equals(CONCATTAGS) && !component.equals(EXCLUDETAGS)) {
+                    keys[count++] = component;
+                }
+            }
+            keys[count++] = name;
+            if (count < keys.length) {
+                keys = Arrays.copyOf(keys, count);
+            }
+            synchronized (pathLock(strPath)) {
+                String[] old = keysByPath.put(strPath, keys);
+                if (old != null) {
+                    update(strPath, old, false);
+                }
+                update(strPath, keys, true);
+            }
+            return keys;
+        }
+
+        public void remove(String strPath, String[] keys) {
+            synchronized (pathLock(strPath)) {
+                if (keys != null && keysByPath.remove(strPath, keys)) {
+                    update(strPath, keys, false);
+                }
+            }
+        }
+
+        private void update(String strPath, String[] keys, boolean add) {
+            for (int i = 0; i < keys.length; i++) {
+                Segment segment = segment(i == keys.length - 1 ? byName : byTag, keys[i]);
+                if (add) {
+                    segment.add(keys[i], strPath);
+                } else {
+                    segment.remove(keys[i], strPath);
+                }
+            }
+        }
+
+        public Set<String> takeByTag(String tag) {
+            return segment(byTag, tag).take(tag);
+        }
+
+        public Set<String> takeByName(String name) {
+            return segment(byName, name).take(name);
+        }
+
+        public void clear() {
+            for (int i = 0; i < SEGMENTS; i++) {
+                byTag[i].clear();
+                byName[i].clear();
+            }
+            keysByPath.clear();
+        }
+    }
+
+    private BoundedCache.Budget budget = new BoundedCache.Budget(CACHE_BYTES);
+    private BoundedCache<String, CachedFile> fileCache = new BoundedCache<String, CachedFile>("files", FILECACHE_ENTRIES,
+            FILECACHE_BYTES, FILECACHE_EXPIRE, new BoundedCache.Weigher<String, CachedFile>() {
+
+                @Override
+                public int weigh(String key, CachedFile value) {
+                    // rough estimate of the key and path chars with the objects overhead
+                    return 2 * (key.length() + value.getName().length()) + 128;
+                }
+            }, budget);
+    // loads in progress, concurrent misses of the same path wait for the single load instead of querying the DB again
+    private ConcurrentMap<String, FutureTask<CachedFile>> fileLoads = new ConcurrentHashMap<String, FutureTask<CachedFile>>();
+    private ConcurrentMap<String, LockableFile> fileStreamCache = new ConcurrentHashMap<String, LockableFile>();
+    private NegativeCache nonExistent = new NegativeCache(NEGATIVECACHE_ENTRIES, NEGATIVECACHE_BYTES, FILECACHE_EXPIRE,
+            budget);
+    private ListingCache listingCache = new ListingCache(LISTINGCACHE_ENTRIES, LISTINGCACHE_BYTES, FILECACHE_EXPIRE, budget);
+    // per-path locks for compound operations, different paths almost never share a stripe
+    private Object[] locks = new Object[LOCKSTRIPES];
+    // includes the paths being loaded, so an invalidation can cancel caching of a load that read the old state
+    private KeyIndex keyIndex = new KeyIndex();
+    // bumped on every invalidation, entries resolved by a listing that started before it may be stale
+    private AtomicLong fileEpoch = new AtomicLong();
 
     private CacheManager() {
-        cleanupTimer.schedule(new TimerTask() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        fileCache.setRemovalListener(new BoundedCache.RemovalListener<String, CachedFile>() {
 
             @Override
-            public void run() {
-                synchronized (fileCache) {
-
-                    long curTime = System.currentTimeMillis();
-                    Iterator<Entry<String, CachedFile>> iter = fileCache.entrySet().iterator();
-                    int count = 0;
-                    while (iter.hasNext()) {
-                        Entry<String, CachedFile> entry = iter.next();
-                        CachedFile cachedFile = entry.getValue();
-                        if (curTime - cachedFile.getCreated() > CACHECLEANUPPERIOD) {
-                            iter.remove();
-                            count++;
-                        }
-                    }
-                    System.err.println("Cleaned " + count + " file records. " + fileStreamCache.size() + " retained.");
+            public void onRemoval(String key, CachedFile value) {
+                keyIndex.remove(key, value.indexKeys);
+            }
+        });
+        MetadataEventBus.INSTANCE.subscribe(new MetadataListener() {
+
+            @Override
+            public void onEvent(MetadataEvent event) {
+                fileEpoch.incrementAndGet();
+                switch (event.getType()) {
+                case TAG_RENAMED:
+                    removeCachedFiles(keyIndex.takeByTag(event.getOldName()));
+                    removeCachedFiles(keyIndex.takeByTag(event.getName()));
+                    // files may be reachable by the paths with the new name that were missing before
+                    nonExistent.clear();
+                    break;
+                case TAG_DELETED:
+                    removeCachedFiles(keyIndex.takeByTag(event.getOldName()));
+                    break;
+                case FILE_CREATED:
+                    nonExistent.invalidate(event.getName());
+                    break;
+                case FILE_RETAGGED:
+                    removeCachedFiles(keyIndex.takeByName(event.getOldName()));
+                    removeCachedFiles(keyIndex.takeByName(event.getName()));
+                    // the file may be reachable by the paths that were missing before
+                    nonExistent.invalidate(event.getName());
+                    break;
+                case FILE_CHANGED:
+                case FILE_DELETED:
+                    removeCachedFiles(keyIndex.takeByName(event.getOldName()));
+                    break;
+                default:
+                    break;
                 }
             }
-        }, CACHECLEANUPPERIOD, CACHECLEANUPPERIOD);
+        });
     }
 
-    public void removeCachedFile(Filepath filepath) {
-        synchronized (fileCache) {
-            fileCache.remove(filepath.asStringPath());
+    public Object getLock(String strPath) {
+        return locks[(strPath.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    private void removeCachedFiles(Set<String> strPaths) {
+        for (String strPath : strPaths) {
+            synchronized (getLock(strPath)) {
+                // a load in flight may have read the old state, it won't be cached
+                fileLoads.remove(strPath);
+                fileCache.remove(strPath);
+            }
         }
     }
 
-    public CachedFile getCachedFile(String strPath) {
-        synchronized (fileCache) {
-            return fileCache.get(strPath);
+    // Returns the cached file or loads it. Only one load per path runs at a time, FSHandlerFileException thrown by the
+    // loader marks the path as nonexistent.
+    public CachedFile getCachedFile(Filepath filepath, Callable<CachedFile> loader) {
+        String strPath = filepath.asStringPath();
+        CachedFile cachedFile = fileCache.get(strPath);
+        if (cachedFile != null) {
+            return cachedFile;
+        }
+        String name = filepath.getStrippedFilename();
+        if (nonExistent.contains(name, strPath)) {
+            throw new FSHandlerFileException("cached nonexistent");
         }
+        FutureTask<CachedFile> load = new FutureTask<CachedFile>(loader);
+        FutureTask<CachedFile> running = fileLoads.putIfAbsent(strPath, load);
+        if (running == null) {
+            running = load;
+            long epoch = nonExistent.getEpoch();
+            String[] keys = keyIndex.add(strPath, filepath, name);
+            load.run();
+            synchronized (getLock(strPath)) {
+                // the load is unregistered if the path was invalidated meanwhile, its result may be stale then
+                boolean cached = false;
+                if (fileLoads.remove(strPath, load)) {
+                    try {
+                        CachedFile loaded = load.get();
+                        loaded.indexKeys = keys;
+                        fileCache.put(strPath, loaded);
+                        cached = true;
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof FSHandlerFileException) {
+                            nonExistent.add(name, strPath, epoch);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (!cached) {
+                    keyIndex.remove(strPath, keys);
+                }
+            }
+        }
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new FSHandlerFileException("load failed: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FSHandlerFileException("interrupted");
+        }
+    }
+
+    public long getFileEpoch() {
+        return fileEpoch.get();
     }
 
-    public void putCachedFile(String strPath, CachedFile file) {
-        synchronized (fileCache) {
-            fileCache.put(strPath, file);
+    // Caches a file resolved by a listing of the directory. It's skipped if anything was invalidated since the listing
+    // started at the given epoch or if the path is being loaded already.
+    public void putCachedFile(String strPath, Filepath directory, CachedFile cachedFile, long epoch) {
+        synchronized (getLock(strPath)) {
+            if (fileEpoch.get() != epoch || fileLoads.containsKey(strPath)) {
+                return;
+            }
+            cachedFile.indexKeys = keyIndex.add(strPath, directory, cachedFile.getName());
+            fileCache.put(strPath, cachedFile);
         }
     }
 
     public LockableFile getStreamFile(String strPath) {
-        synchronized (fileStreamCache) {
-            return fileStreamCache.get(strPath);
-        }
+        return fileStreamCache.get(strPath);
     }
 
     public void putStreamFile(String strPath, LockableFile lockableFile) {
-        synchronized (fileStreamCache) {
-            fileStreamCache.put(strPath, lockableFile);
-        }
+        fileStreamCache.put(strPath, lockableFile);
     }
 
-    public void removeStreamFile(String strPath) {
-        synchronized (fileStreamCache) {
-            fileStreamCache.remove(strPath);
-        }
+    // only removes the given file, the path may have been opened again already
+    public void removeStreamFile(String strPath, LockableFile lockableFile) {
+        fileStreamCache.remove(strPath, lockableFile);
     }
 
-    public void cleanup() {
-        cleanupTimer.cancel();
+    public List<BoundedCache<?, ?>> getCaches() {
+        return Arrays.<BoundedCache<?, ?>> asList(fileCache, nonExistent.getCache(), listingCache.getCache());
     }
 
-    public void putNonExistentFile(String strPath) {
-        synchronized (nonExistent) {
-            nonExistent.add(strPath);
-        }
+    public BoundedCache.Budget getBudget() {
+        return budget;
     }
 
-    public boolean isNonExistentFile(String strPath) {
-        synchronized (nonExistent) {
-            return nonExistent.contains(strPath);
-        }
+    public ListingCache getListingCache() {
+        return listingCache;
     }
 
-    public void removeNonExistentFile(String strPath) {
-        synchronized (nonExistent) {
-            nonExistent.remove(strPath);
-        }
+    public void cleanup() {
+        fileEpoch.incrementAndGet();
+        fileCache.clear();
+        nonExistent.clear();
+        listingCache.clear();
+        keyIndex.clear();
     }
 
 }
@@ -3,26 +3,47 @@ package ru.rkfg.jtagsfs;
 import java.io.File;
 
 public class CachedFile {
-    private File file;
-    private long created;
-
+    private String name;
+    private Long id;
+    // stored attributes, null if unknown
+    private Long size;
+    private Long mtime;
+    private Long ctime;
+    // the key index registration of the cached path, set by the cache
+    String[] indexKeys;
+
+    // the location is resolved on every call, the storage may be migrating
     public File getFile() {
-        return file;
+        return Storage.INSTANCE.getFile(id, name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getSize() {
+        return size;
     }
 
-    public long getCreated() {
-        return created;
+    public Long getMtime() {
+        return mtime;
     }
 
-    public void setCreated(long created) {
-        this.created = created;
+    public Long getCtime() {
+        return ctime;
     }
 
-    public CachedFile(File file) {
+    public CachedFile(String name, Long id, Long size, Long mtime, Long ctime) {
         super();
-        this.file = file;
-        this.created = System.currentTimeMillis();
+        this.name = name;
+        this.id = id;
+        this.size = size;
+        this.mtime = mtime;
+        this.ctime = ctime;
     }
 
 }
-
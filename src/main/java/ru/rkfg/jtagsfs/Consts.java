@@ -5,8 +5,50 @@ public class Consts {
     public static final String TAGGEDCONTENT = "@@";
     public static final String IDSEPARATOR = "|_|";
     public static final String STORAGE = "storage";
+    // layout of the data files, an existing store is migrated to it in the background
+    public static final String STORAGE_LAYOUT = System.getProperty("jtagsfs.storage.layout", "id");
+    // files moved per second by the migration, 0 means no limit
+    public static final int STORAGE_RATE = Integer.getInteger("jtagsfs.storage.rate", 200);
     public static final String CONCATTAGS = "+";
     public static final String EXCLUDETAGS = "_";
     public static final String TAGSLIST_EXT = ".tags";
-    public static final long CACHECLEANUPPERIOD = 600000;
+    // memory shared by all caches, can be overridden with -Djtagsfs.cache.bytes
+    public static final long CACHE_BYTES = Long.getLong("jtagsfs.cache.bytes", 64L << 20);
+    // file resolution cache bounds, can be overridden with -Djtagsfs.filecache.*
+    public static final int FILECACHE_ENTRIES = Integer.getInteger("jtagsfs.filecache.entries", 100000);
+    public static final long FILECACHE_BYTES = Long.getLong("jtagsfs.filecache.bytes", 32L << 20);
+    public static final long FILECACHE_EXPIRE = Long.getLong("jtagsfs.filecache.expire", 3600000);
+    public static final int NEGATIVECACHE_ENTRIES = Integer.getInteger("jtagsfs.negativecache.entries", 100000);
+    public static final long NEGATIVECACHE_BYTES = Long.getLong("jtagsfs.negativecache.bytes", 16L << 20);
+    public static final int LISTINGCACHE_ENTRIES = Integer.getInteger("jtagsfs.listingcache.entries", 4096);
+    public static final long LISTINGCACHE_BYTES = Long.getLong("jtagsfs.listingcache.bytes", 32L << 20);
+    // bigger listings aren't cached, they are streamed from the DB every time
+    public static final int LISTINGCACHE_MAXNAMES = Integer.getInteger("jtagsfs.listingcache.maxnames", 10000);
+    // the attributes repair pass at mount compares the sizes of all records with the storage, not only fills the missing
+    // ones
+    public static final boolean ATTRIBUTES_VERIFY = Boolean.getBoolean("jtagsfs.attributes.verify");
+    // kernel side caching of the entries, attributes and misses in seconds, see KernelCache
+    public static final String KERNEL_ENTRY_TIMEOUT = System.getProperty("jtagsfs.kernel.entry_timeout", "1");
+    public static final String KERNEL_ATTR_TIMEOUT = System.getProperty("jtagsfs.kernel.attr_timeout", "1");
+    public static final String KERNEL_NEGATIVE_TIMEOUT = System.getProperty("jtagsfs.kernel.negative_timeout", "0");
+    // the page cache of unchanged files is kept between opens
+    public static final boolean KERNEL_KEEP_CACHE = !"false".equals(System.getProperty("jtagsfs.kernel.keep_cache"));
+    public static final int FETCHSIZE = 1000;
+    public static final int PLANCACHESIZE = 1024;
+    public static final int READDIRBATCH = 256;
+    public static final int LOCKSTRIPES = 64;
+    // files of at least this size are read through memory mappings, 0 disables mapping
+    public static final long MMAP_THRESHOLD = Long.getLong("jtagsfs.mmap.threshold", 0);
+    public static final int MMAP_REGION = Integer.getInteger("jtagsfs.mmap.region", 16 << 20);
+    public static final int MMAP_MAXREGIONS = Integer.getInteger("jtagsfs.mmap.regions", 64);
+    // sequential reads prefetch up to this many bytes ahead in chunks, 0 disables read-ahead
+    public static final int READAHEAD_MAX = Integer.getInteger("jtagsfs.readahead.max", 4 << 20);
+    public static final int READAHEAD_CHUNK = Integer.getInteger("jtagsfs.readahead.chunk", 512 << 10);
+    // chunk buffers shared by all handles
+    public static final int READAHEAD_BUFFERS = Integer.getInteger("jtagsfs.readahead.buffers", 32);
+    public static final int READAHEAD_THREADS = Integer.getInteger("jtagsfs.readahead.threads", 4);
+    // a handle buffers small writes until it has this many bytes, 0 disables write-back
+    public static final int WRITEBACK_FLUSH = Integer.getInteger("jtagsfs.writeback.flush", 0);
+    // memory for the buffered writes of all handles
+    public static final long WRITEBACK_MAX = Long.getLong("jtagsfs.writeback.max", 64L << 20);
 }
@@ -24,7 +24,7 @@ public class ControlHandler extends AbstractTagsHandler {
 
     @Override
     public void getattr(Filepath filepath, StatWrapper stat) throws FSHandlerException {
-        if (filepath.getPath().length == 0 || filepath.getPath().length > 0 && readdir(filepath.up(1)).contains(filepath.getPathLast())) {
+        if (filepath.getPath().length == 0 || isChildTag(filepath)) {
             stat.mode(VirtualEntry.DIRMODE);
             stat.size(4096);
         } else {
@@ -32,6 +32,22 @@ public class ControlHandler extends AbstractTagsHandler {
         }
     }
 
+    // same as readdir(filepath.up(1)).contains(filepath.getPathLast()) but without building the listing
+    private boolean isChildTag(Filepath filepath) {
+        String tagName = filepath.getPathLast();
+        if (tagDictionary.get(tagName) == null) {
+            return false;
+        }
+        String[] path = filepath.getPath();
+        for (int i = 0; i < path.length - 1; i++) {
+            if (path[i].equals(tagName)) {
+                return false;
+            }
+        }
+        String parentName = tagDictionary.getParentName(tagName);
+        return path.length == 1 ? parentName == null : path[path.length - 2].equals(parentName);
+    }
+
     @Override
     public int getDepth() {
         return 1;
@@ -52,24 +68,20 @@ public class ControlHandler extends AbstractTagsHandler {
         if (from.getName() != null || to.getName() != null) {
             throw new FSHandlerException("notsupp");
         }
-        HibernateUtil.exec(new HibernateCallback<Void>() {
-
-            @Override
-            public Void run(Session session) {
-                renameTag(from, to, session);
-                return null;
-            }
-        });
+        renameTag(from, to);
     }
 
     @Override
     public void rmdir(final Filepath filepath) throws FSHandlerException {
+        final Long id = tagDictionary.getId(filepath.getPathLast());
+        if (id == null) {
+            throw new FSHandlerException("notfound");
+        }
         String result = HibernateUtil.exec(new HibernateCallback<String>() {
 
             @Override
             public String run(Session session) {
-                String tagName = filepath.getPathLast();
-                Tag toDelete = (Tag) session.createQuery("from Tag t where t.name = :t").setString("t", tagName).uniqueResult();
+                Tag toDelete = (Tag) session.get(Tag.class, id);
                 if (toDelete == null) {
                     return "notfound";
                 }
@@ -83,6 +95,9 @@ public class ControlHandler extends AbstractTagsHandler {
         if (result != null) {
             throw new FSHandlerException(result);
         }
+        tagDictionary.remove(id);
+        TagIndex.INSTANCE.removeTag(id);
+        MetadataEventBus.INSTANCE.publish(MetadataEvent.tagDeleted(id, filepath.getPathLast()));
     }
 
 }
@@ -3,6 +3,7 @@ package ru.rkfg.jtagsfs;
 import java.nio.ByteBuffer;
 import java.util.Set;
 
+import net.fusejna.DirectoryFiller;
 import net.fusejna.StructFuseFileInfo.FileInfoWrapper;
 import net.fusejna.StructStat.StatWrapper;
 import ru.rkfg.jtagsfs.FSHandlerManager.FSHandlerException;
@@ -13,6 +14,8 @@ public interface FSHandler {
 
     public Set<String> readdir(Filepath filepath) throws FSHandlerException;
 
+    public void readdir(Filepath filepath, DirectoryFiller filler) throws FSHandlerException;
+
     public void getattr(Filepath filepath, StatWrapper stat) throws FSHandlerException;
 
     public int getDepth();
@@ -35,6 +38,18 @@ public interface FSHandler {
 
     public void release(Filepath filepath, FileInfoWrapper info) throws FSHandlerException;
 
+    // the same operations for the files opened with a handle
+    int read(FileHandle handle, ByteBuffer buffer, long size, long offset) throws FSHandlerException;
+
+    int write(FileHandle handle, ByteBuffer buffer, long bufSize, long writeOffset) throws FSHandlerException;
+
+    void release(FileHandle handle) throws FSHandlerException;
+
+    // writes out the buffered data, fsync also makes it durable
+    void flush(FileHandle handle) throws FSHandlerException;
+
+    void fsync(FileHandle handle, boolean dataOnly) throws FSHandlerException;
+
     public void rmdir(Filepath strip) throws FSHandlerException;
 
 }
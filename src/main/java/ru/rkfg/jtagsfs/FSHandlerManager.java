@@ -4,8 +4,6 @@ import static ru.rkfg.jtagsfs.Consts.*;
 
 import java.io.File;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -64,15 +62,19 @@ public class FSHandlerManager {
 
     RootHandler rootHandler = new RootHandler();
 
-    List<FSHandler> handlers = rootHandler.getHandlers();
-
-    HashMap<String, FSHandler> pathHandlerMap = new HashMap<String, FSHandler>();
+    // the handlers by their prefix, replaced as a whole when one is registered
+    private volatile PrefixTrie<FSHandler> handlerTrie = new PrefixTrie<FSHandler>();
 
     public FSHandlerManager() {
-        handlers.add(rootHandler);
-        for (FSHandler handler : handlers) {
-            pathHandlerMap.put(handler.getPrefix(), handler);
-        }
+        register(new ControlHandler());
+        register(new TagsHandler());
+        register(new StatHandler());
+    }
+
+    // Adds a handler for the paths under its prefix, the prefix becomes a directory in the root.
+    public synchronized void register(FSHandler handler) {
+        rootHandler.addHandler(handler);
+        handlerTrie = handlerTrie.with(handler.getPrefix(), handler);
     }
 
     public boolean containsByName(List<FileRecord> fileRecords, String name) {
@@ -85,23 +87,21 @@ public class FSHandlerManager {
     }
 
     public void getattr(String path, StatWrapper stat) throws FSHandlerException {
-        Filepath filepath = parseFilePath(path);
-        FSHandler handler;
-        if (filepath.getName() == null) {
-            handler = getHandlerByPath(filepath.up(1));
-        } else {
-            handler = getHandlerByPath(filepath);
-        }
-        handler.getattr(filepath.strip(handler.getDepth()), stat);
+        // the handler directories are the entries of the root
+        FSHandler handler = path.indexOf(File.separatorChar, 1) < 0 ? rootHandler : getHandlerByPath(path);
+        handler.getattr(parse(path, handler), stat);
     }
 
-    public FSHandler getHandlerByPath(Filepath filepath) throws FSHandlerException {
-        FSHandler result;
-        if (filepath.getPath().length > 0) {
-            result = pathHandlerMap.get(filepath.getPath()[0]);
-        } else {
-            result = pathHandlerMap.get("/");
+    // the handler of the first path component, it's found before the path is parsed
+    public FSHandler getHandlerByPath(String path) throws FSHandlerException {
+        int end = path.indexOf(File.separatorChar, 1);
+        if (end < 0) {
+            end = path.length();
         }
+        if (end <= 1) {
+            return rootHandler;
+        }
+        FSHandler result = handlerTrie.get(path, 1, end);
         if (result == null) {
             throw new FSHandlerException("Handler not found.");
         }
@@ -116,117 +116,113 @@ public class FSHandlerManager {
     }
 
     public Filepath parseFilePath(String path) {
-        String[] pathTags = splitPath(path);
-        Filepath result = new Filepath();
-        if (pathTags.length > 1 && (pathTags[pathTags.length - 2].equals(ENDOFTAGS) || pathTags[pathTags.length - 2].equals(TAGGEDCONTENT))) {
-            result.setName(pathTags[pathTags.length - 1]);
-            result.setPath(Arrays.copyOf(pathTags, pathTags.length - 2));
-        } else {
-            if (pathTags.length > 1 && pathTags[pathTags.length - 1].equals(ENDOFTAGS)) {
-                result.setPath(Arrays.copyOf(pathTags, pathTags.length - 1));
-                result.setContent(true);
-            } else {
-                if (pathTags.length > 1 && pathTags[pathTags.length - 1].equals(TAGGEDCONTENT)) {
-                    result.setPath(Arrays.copyOf(pathTags, pathTags.length - 1));
-                    result.setContent(true);
-                    result.setContentWithTags(true);
-                } else {
-                    result.setPath(pathTags);
-                }
-            }
-        }
-        return result;
+        return Filepath.parse(path);
     }
 
     public int read(String path, ByteBuffer buffer, long size, long offset, FileInfoWrapper info) {
-        Filepath filepath = parseFilePath(path);
+        FileHandle handle = FileHandleTable.INSTANCE.get(info.fh());
+        if (handle != null) {
+            try {
+                return handle.getHandler().read(handle, buffer, size, offset);
+            } catch (FSHandlerException e) {
+                return 0;
+            }
+        }
         try {
-            FSHandler handler = getHandlerByPath(filepath);
-            return handler.read(strip(filepath, handler), buffer, size, offset);
+            FSHandler handler = getHandlerByPath(path);
+            return handler.read(parse(path, handler), buffer, size, offset);
         } catch (FSHandlerException e) {
             return 0;
         }
     }
 
     public void readdir(String path, DirectoryFiller filler) throws FSHandlerException {
-        Filepath filepath = parseFilePath(path);
-        FSHandler handler = getHandlerByPath(filepath);
-        filler.add(handler.readdir(strip(filepath, handler)));
-    }
-
-    public String[] splitPath(String path) {
-        path = path.substring(1);
-        if (path.isEmpty()) {
-            return new String[0];
-        }
-        return path.split(File.separator);
+        FSHandler handler = getHandlerByPath(path);
+        handler.readdir(parse(path, handler), filler);
     }
 
     public void mkdir(String path) throws FSHandlerException {
-        Filepath filepath = parseFilePath(path);
-        FSHandler handler = getHandlerByPath(filepath);
-        handler.mkdir(strip(filepath, handler));
+        FSHandler handler = getHandlerByPath(path);
+        handler.mkdir(parse(path, handler));
     }
 
-    private Filepath strip(Filepath filepath, FSHandler handler) {
-        return filepath.strip(handler.getDepth());
+    private Filepath parse(String path, FSHandler handler) {
+        return parseFilePath(path).strip(handler.getDepth());
     }
 
     public void rename(String path, String newName) throws FSHandlerException {
-        Filepath from = parseFilePath(path);
-        Filepath to = parseFilePath(newName);
-        FSHandler handlerFrom = getHandlerByPath(from);
-        FSHandler handlerTo = getHandlerByPath(to);
+        FSHandler handlerFrom = getHandlerByPath(path);
+        FSHandler handlerTo = getHandlerByPath(newName);
         if (handlerFrom == handlerTo) {
-            handlerFrom.rename(strip(from, handlerFrom), strip(to, handlerFrom));
+            handlerFrom.rename(parse(path, handlerFrom), parse(newName, handlerFrom));
         } else {
             throw new FSHandlerException("cross-module renaming not allowed.");
         }
     }
 
     public void unlink(String path) throws FSHandlerException {
-        Filepath filepath = parseFilePath(path);
-        FSHandler handler = getHandlerByPath(filepath);
-        handler.unlink(strip(filepath, handler));
+        FSHandler handler = getHandlerByPath(path);
+        handler.unlink(parse(path, handler));
     }
 
     public void truncate(String path, long offset) throws FSHandlerException {
-        Filepath filepath = parseFilePath(path);
-        FSHandler handler = getHandlerByPath(filepath);
-        handler.truncate(strip(filepath, handler), offset);
+        FSHandler handler = getHandlerByPath(path);
+        handler.truncate(parse(path, handler), offset);
     }
 
     public void create(String path, FileInfoWrapper info) throws FSHandlerException {
-        Filepath filepath = parseFilePath(path);
-        FSHandler handler = getHandlerByPath(filepath);
-        handler.create(strip(filepath, handler), info);
+        FSHandler handler = getHandlerByPath(path);
+        handler.create(parse(path, handler), info);
     }
 
     public int write(String path, ByteBuffer buffer, long bufSize, long writeOffset, FileInfoWrapper wrapper) {
-        Filepath filepath = parseFilePath(path);
+        FileHandle handle = FileHandleTable.INSTANCE.get(wrapper.fh());
+        if (handle != null) {
+            try {
+                return handle.getHandler().write(handle, buffer, bufSize, writeOffset);
+            } catch (FSHandlerException e) {
+                return 0;
+            }
+        }
         try {
-            FSHandler handler = getHandlerByPath(filepath);
-            return handler.write(strip(filepath, handler), buffer, bufSize, writeOffset);
+            FSHandler handler = getHandlerByPath(path);
+            return handler.write(parse(path, handler), buffer, bufSize, writeOffset);
         } catch (FSHandlerException e) {
             return 0;
         }
     }
 
     public void open(String path, FileInfoWrapper info) throws FSHandlerException {
-        Filepath filepath = parseFilePath(path);
-        FSHandler handler = getHandlerByPath(filepath);
-        handler.open(strip(filepath, handler), info);
+        FSHandler handler = getHandlerByPath(path);
+        handler.open(parse(path, handler), info);
     }
 
     public void release(String path, FileInfoWrapper info) throws FSHandlerException {
-        Filepath filepath = parseFilePath(path);
-        FSHandler handler = getHandlerByPath(filepath);
-        handler.release(strip(filepath, handler), info);
+        FileHandle handle = FileHandleTable.INSTANCE.remove(info.fh());
+        if (handle != null) {
+            handle.getHandler().release(handle);
+            return;
+        }
+        FSHandler handler = getHandlerByPath(path);
+        handler.release(parse(path, handler), info);
+    }
+
+    public void flush(String path, FileInfoWrapper info) throws FSHandlerException {
+        FileHandle handle = FileHandleTable.INSTANCE.get(info.fh());
+        if (handle != null) {
+            handle.getHandler().flush(handle);
+        }
+    }
+
+    public void fsync(String path, boolean dataOnly, FileInfoWrapper info) throws FSHandlerException {
+        FileHandle handle = FileHandleTable.INSTANCE.get(info.fh());
+        if (handle != null) {
+            handle.getHandler().fsync(handle, dataOnly);
+        }
     }
 
     public void rmdir(String path) throws FSHandlerException {
-        Filepath filepath = parseFilePath(path);
-        FSHandler handler = getHandlerByPath(filepath);
-        handler.rmdir(strip(filepath, handler));
+        FSHandler handler = getHandlerByPath(path);
+        handler.rmdir(parse(path, handler));
     }
 }
@@ -0,0 +1,230 @@
+package ru.rkfg.jtagsfs;
+
+import static ru.rkfg.jtagsfs.Consts.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+
+import ru.rkfg.jtagsfs.domain.FileRecord;
+
+// Size and times of a data file. They are stored in the file record so getattr doesn't touch the storage. While the
+// file is open they live here, shared by all its open paths, and every write updates them; they are saved to the DB
+// when the last path is closed. Records made before the attributes were stored get them from the storage on the first
+// access, the repair pass fills them all and fixes the ones that don't match the storage anymore.
+public class FileAttributes {
+
+    private static final Map<Long, FileAttributes> open = new HashMap<Long, FileAttributes>();
+
+    private long id;
+    private AtomicLong size;
+    private volatile long mtime;
+    private volatile long ctime;
+    private volatile boolean dirty;
+    // number of changes through any path
+    private volatile long changes;
+    // guarded by the open map
+    private int paths;
+
+    private FileAttributes(long id, long size, long mtime, long ctime) {
+        this.id = id;
+        this.size = new AtomicLong(size);
+        this.mtime = mtime;
+        this.ctime = ctime;
+    }
+
+    // the attributes of an open file, null if it isn't open
+    public static FileAttributes get(long id) {
+        synchronized (open) {
+            return open.get(id);
+        }
+    }
+
+    // called when a path of the file is opened
+    public static FileAttributes acquire(CachedFile cachedFile) {
+        // may need to stat the storage and save, that's done outside of the lock
+        FileAttributes loaded = of(cachedFile);
+        synchronized (open) {
+            FileAttributes attributes = open.get(cachedFile.getId());
+            if (attributes == null) {
+                attributes = loaded;
+                open.put(cachedFile.getId(), attributes);
+            }
+            attributes.paths++;
+            return attributes;
+        }
+    }
+
+    // called when a path of the file is closed, the last one saves the changed attributes
+    public static void release(FileAttributes attributes) {
+        boolean last;
+        synchronized (open) {
+            last = --attributes.paths == 0;
+        }
+        if (!last) {
+            return;
+        }
+        // the attributes stay registered while being saved so getattr doesn't see the old ones
+        if (attributes.dirty) {
+            attributes.dirty = false;
+            save(attributes.id, attributes.getSize(), attributes.mtime, attributes.ctime);
+        }
+        synchronized (open) {
+            // the file may have been opened again meanwhile, it keeps using these attributes then
+            if (attributes.paths == 0) {
+                open.remove(attributes.id);
+            }
+        }
+    }
+
+    // the open attributes of the file or the stored ones, the missing ones are taken from the storage and saved
+    public static FileAttributes of(CachedFile cachedFile) {
+        FileAttributes attributes = get(cachedFile.getId());
+        if (attributes != null) {
+            return attributes;
+        }
+        if (cachedFile.getSize() != null && cachedFile.getMtime() != null) {
+            long mtime = cachedFile.getMtime();
+            return new FileAttributes(cachedFile.getId(), cachedFile.getSize(), mtime,
+                    cachedFile.getCtime() == null ? mtime : cachedFile.getCtime());
+        }
+        File file = cachedFile.getFile();
+        long mtime = file.lastModified();
+        save(cachedFile.getId(), file.length(), mtime, mtime);
+        return new FileAttributes(cachedFile.getId(), file.length(), mtime, mtime);
+    }
+
+    // the data up to the end offset was written
+    public void written(long end) {
+        long current;
+        do {
+            current = size.get();
+        } while (current < end && !size.compareAndSet(current, end));
+        touch();
+    }
+
+    public void truncated(long length) {
+        size.set(length);
+        touch();
+    }
+
+    // every change gets a new mtime even within the same millisecond so it can tell a file has changed
+    private synchronized void touch() {
+        mtime = ctime = Math.max(System.currentTimeMillis(), mtime + 1);
+        changes++;
+        dirty = true;
+    }
+
+    public long getChanges() {
+        return changes;
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+
+    public long getMtime() {
+        return mtime;
+    }
+
+    public long getCtime() {
+        return ctime;
+    }
+
+    public static void save(final long id, final long size, final long mtime, final long ctime) {
+        String name = HibernateUtil.exec(new HibernateCallback<String>() {
+
+            @Override
+            public String run(Session session) {
+                FileRecord fileRecord = (FileRecord) session.get(FileRecord.class, id);
+                if (fileRecord == null) {
+                    // deleted meanwhile
+                    return null;
+                }
+                fileRecord.setSize(size);
+                fileRecord.setMtime(mtime);
+                fileRecord.setCtime(ctime);
+                return fileRecord.getName();
+            }
+        });
+        if (name != null) {
+            MetadataEventBus.INSTANCE.publish(MetadataEvent.fileChanged(id, name));
+        }
+    }
+
+    // Compares the stored sizes of the files that aren't open with the storage and fixes them, all of them or only the
+    // records missing the attributes. The stored times are the ones of the calls we handled and not of the storage
+    // files so they aren't compared. A record changed meanwhile is left alone. Returns the number of fixed records.
+    public static long repair(final boolean all) {
+        long fixed = 0;
+        long last = 0;
+        while (true) {
+            final long from = last;
+            List<Object[]> batch = HibernateUtil.read(new HibernateCallback<List<Object[]>>() {
+
+                @SuppressWarnings("unchecked")
+                @Override
+                public List<Object[]> run(Session session) {
+                    return session
+                            .createQuery(
+                                    "select f.id, f.name, f.size, f.mtime from FileRecord f where f.id > :id"
+                                            + (all ? "" : " and (f.size is null or f.mtime is null)") + " order by f.id")
+                            .setLong("id", from).setMaxResults(FETCHSIZE).list();
+                }
+            });
+            if (batch.isEmpty()) {
+                return fixed;
+            }
+            for (Object[] record : batch) {
+                long id = (Long) record[0];
+                last = id;
+                if (get(id) != null) {
+                    continue;
+                }
+                Long oldSize = (Long) record[2];
+                Long oldMtime = (Long) record[3];
+                File file = Storage.INSTANCE.getFile(id, (String) record[1]);
+                long size = file.length();
+                if (oldMtime != null && Long.valueOf(size).equals(oldSize)) {
+                    continue;
+                }
+                long mtime = file.lastModified();
+                if (saveIfUnchanged(id, (String) record[1], oldSize, oldMtime, size, mtime)) {
+                    fixed++;
+                }
+            }
+        }
+    }
+
+    // saves the attributes only if the stored ones are still the old ones, a file written meanwhile keeps its own
+    private static boolean saveIfUnchanged(final long id, String name, final Long oldSize, final Long oldMtime,
+            final long size, final long mtime) {
+        int updated = HibernateUtil.exec(new HibernateCallback<Integer>() {
+
+            @Override
+            public Integer run(Session session) {
+                Query query = session.createQuery("update FileRecord f set f.size = :size, f.mtime = :mtime,"
+                        + " f.ctime = :mtime where f.id = :id and f.size " + (oldSize == null ? "is null" : "= :oldSize")
+                        + " and f.mtime " + (oldMtime == null ? "is null" : "= :oldMtime"));
+                query.setLong("size", size).setLong("mtime", mtime).setLong("id", id);
+                if (oldSize != null) {
+                    query.setLong("oldSize", oldSize);
+                }
+                if (oldMtime != null) {
+                    query.setLong("oldMtime", oldMtime);
+                }
+                return query.executeUpdate();
+            }
+        });
+        if (updated == 0) {
+            return false;
+        }
+        MetadataEventBus.INSTANCE.publish(MetadataEvent.fileChanged(id, name));
+        return true;
+    }
+}
@@ -0,0 +1,73 @@
+package ru.rkfg.jtagsfs;
+
+// An open file as seen by FUSE, its number is passed back in FileInfoWrapper.fh with every read, write and release so
+// they don't need to parse the path or look up anything by it.
+public class FileHandle {
+    private long fh;
+    private FSHandler handler;
+    private Filepath filepath;
+    private String strPath;
+    private LockableFile file;
+    private ReadAhead readAhead;
+    private WriteBuffer writeBuffer;
+    // the changes of the file and of its path when it was opened
+    private long fileChanges;
+    private long pathChanges;
+
+    public FileHandle(FSHandler handler, Filepath filepath, String strPath, LockableFile file) {
+        this.handler = handler;
+        this.filepath = filepath;
+        this.strPath = strPath;
+        this.file = file;
+        if (file != null) {
+            fileChanges = file.getAttributes().getChanges();
+            pathChanges = file.getChanges();
+        }
+        if (file != null && ReadAhead.isEnabled()) {
+            readAhead = new ReadAhead(file);
+        }
+        if (file != null && WriteBuffer.isEnabled()) {
+            writeBuffer = WriteBuffer.acquire(file);
+        }
+    }
+
+    public long getFh() {
+        return fh;
+    }
+
+    void setFh(long fh) {
+        this.fh = fh;
+    }
+
+    public FSHandler getHandler() {
+        return handler;
+    }
+
+    public Filepath getFilepath() {
+        return filepath;
+    }
+
+    public String getStrPath() {
+        return strPath;
+    }
+
+    public LockableFile getFile() {
+        return file;
+    }
+
+    // null if read-ahead is disabled
+    public ReadAhead getReadAhead() {
+        return readAhead;
+    }
+
+    // whether the file was changed through other paths while open, the kernel didn't see that in its cached pages
+    public boolean isChangedElsewhere() {
+        return file.getAttributes().getChanges() - fileChanges != file.getChanges() - pathChanges;
+    }
+
+    // null if write-back is disabled
+    public WriteBuffer getWriteBuffer() {
+        return writeBuffer;
+    }
+
+}
@@ -0,0 +1,64 @@
+package ru.rkfg.jtagsfs;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Open file handles by number. The lower 32 bits of a number are the slot index + 1 so 0 is never a valid handle, the
+// upper bits are a sequence number that makes a reused slot refuse the stale numbers. Lookups don't lock.
+public enum FileHandleTable {
+    INSTANCE;
+
+    private volatile AtomicReferenceArray<FileHandle> slots = new AtomicReferenceArray<FileHandle>(64);
+    private int[] freeSlots = new int[64];
+    private int freeCount;
+    private int used;
+    private long sequence;
+
+    public synchronized long register(FileHandle handle) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (used == slots.length()) {
+                AtomicReferenceArray<FileHandle> grown = new AtomicReferenceArray<FileHandle>(used * 2);
+                for (int i = 0; i < used; i++) {
+                    grown.set(i, slots.get(i));
+                }
+                slots = grown;
+            }
+            slot = used++;
+        }
+        long fh = ++sequence << 32 | slot + 1;
+        handle.setFh(fh);
+        slots.set(slot, handle);
+        return fh;
+    }
+
+    public FileHandle get(long fh) {
+        int slot = (int) fh - 1;
+        AtomicReferenceArray<FileHandle> current = slots;
+        if (slot < 0 || slot >= current.length()) {
+            return null;
+        }
+        FileHandle handle = current.get(slot);
+        return handle != null && handle.getFh() == fh ? handle : null;
+    }
+
+    public synchronized FileHandle remove(long fh) {
+        FileHandle handle = get(fh);
+        if (handle != null) {
+            int slot = (int) fh - 1;
+            slots.set(slot, null);
+            if (freeCount == freeSlots.length) {
+                int[] grown = new int[freeCount * 2];
+                System.arraycopy(freeSlots, 0, grown, 0, freeCount);
+                freeSlots = grown;
+            }
+            freeSlots[freeCount++] = slot;
+        }
+        return handle;
+    }
+
+    public synchronized int size() {
+        return used - freeCount;
+    }
+}
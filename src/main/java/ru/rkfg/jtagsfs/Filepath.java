@@ -6,23 +6,115 @@ import java.io.File;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.hibernate.Session;
 
 import ru.rkfg.jtagsfs.domain.Tag;
 
-public class Filepath implements Cloneable {
-    boolean content;
-    boolean contentWithTags;
-    String[] path;
-    String name;
+// An immutable parsed path: the tag components, the content marker and the file name. The components are a view over
+// the array made by parse, so stripping the handler prefix doesn't copy anything. The key used for caching is built once
+// on demand.
+public class Filepath {
 
-    public boolean isContent() {
-        return content;
+    // Canonical instances of the path components looked up by the region of the path they are in, so the same tags
+    // coming with every call are neither copied nor duplicated. The table is never cleared, when it's full the
+    // components are just copied.
+    private static class Tokens {
+        private static final int MAXLENGTH = 64;
+        private static final int PROBES = 8;
+
+        private AtomicReferenceArray<String> table = new AtomicReferenceArray<String>(1 << 14);
+
+        String get(String source, int start, int end) {
+            int length = end - start;
+            if (length > MAXLENGTH) {
+                return source.substring(start, end);
+            }
+            // the same as String.hashCode of the component
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + source.charAt(i);
+            }
+            int mask = table.length() - 1;
+            int index = (hash ^ hash >>> 16) & mask;
+            for (int i = 0; i < PROBES; i++) {
+                String token = table.get(index);
+                if (token == null) {
+                    token = source.substring(start, end);
+                    // another thread may have taken the slot, a duplicate is harmless
+                    table.compareAndSet(index, null, token);
+                    return token;
+                }
+                if (token.length() == length && source.regionMatches(start, token, 0, length)) {
+                    return token;
+                }
+                index = index + 1 & mask;
+            }
+            return source.substring(start, end);
+        }
     }
 
-    public void setContent(boolean content) {
+    private static final Tokens tokens = new Tokens();
+    private static final String[] EMPTY = new String[0];
+
+    private final String[] components;
+    private final int start;
+    private final int end;
+    private final String name;
+    private final boolean content;
+    private final boolean contentWithTags;
+    // built on demand
+    private String[] path;
+    private String pathKey;
+    private String key;
+
+    private Filepath(String[] components, int start, int end, String name, boolean content, boolean contentWithTags) {
+        this.components = components;
+        this.start = start;
+        this.end = end;
+        this.name = name;
         this.content = content;
+        this.contentWithTags = contentWithTags;
+    }
+
+    // Splits the absolute path by the separator in one pass. The last component after @ or @@ is the file name, a path
+    // ending with @ or @@ is the content of the tags before it.
+    public static Filepath parse(String strPath) {
+        int length = strPath.length();
+        int count = 0;
+        for (int i = 1; i < length; i++) {
+            if (strPath.charAt(i) == File.separatorChar) {
+                count++;
+            }
+        }
+        if (length <= 1) {
+            return new Filepath(EMPTY, 0, 0, null, false, false);
+        }
+        String[] components = new String[count + 1];
+        int from = 1;
+        for (int i = 0; i < count; i++) {
+            int to = strPath.indexOf(File.separatorChar, from);
+            components[i] = tokens.get(strPath, from, to);
+            from = to + 1;
+        }
+        if (count > 0 && (components[count - 1].equals(ENDOFTAGS) || components[count - 1].equals(TAGGEDCONTENT))) {
+            // file names aren't interned, there are too many of them
+            return new Filepath(components, 0, count - 1, strPath.substring(from), false, false);
+        }
+        components[count] = tokens.get(strPath, from, length);
+        int n = components.length;
+        if (n > 1 && components[n - 1].equals(ENDOFTAGS)) {
+            return new Filepath(components, 0, n - 1, null, true, false);
+        }
+        if (n > 1 && components[n - 1].equals(TAGGEDCONTENT)) {
+            return new Filepath(components, 0, n - 1, null, true, true);
+        }
+        return new Filepath(components, 0, n, null, false, false);
+    }
+
+    public boolean isContent() {
+        return content;
     }
 
     public boolean isContentWithTags() {
@@ -35,88 +127,75 @@ public class Filepath implements Cloneable {
                 && !pathLast.equals(Consts.CONCATTAGS) && !pathLast.equals(Consts.TAGGEDCONTENT);
     }
 
-    public void setContentWithTags(boolean contentWithTags) {
-        this.contentWithTags = contentWithTags;
-    }
-
     public String[] getPath() {
+        if (path == null) {
+            path = start == 0 && end == components.length ? components : Arrays.copyOfRange(components, start, end);
+        }
         return path;
     }
 
-    public void setPath(String[] path) {
-        this.path = path;
-    }
-
     public String getName() {
         return name;
     }
 
-    public void setName(String name) {
-        this.name = name;
-    }
-
     public Filepath up(int levels) {
-        try {
-            Filepath result = (Filepath) clone();
-            if (levels >= path.length) {
-                result.setPath(new String[0]);
-            } else {
-                result.setPath(Arrays.copyOf(path, path.length - levels));
-            }
-            return result;
-        } catch (CloneNotSupportedException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return new Filepath(components, start, Math.max(start, end - levels), name, content, contentWithTags);
     }
 
     public Filepath strip(int levels) {
-        try {
-            Filepath result = (Filepath) clone();
-            if (levels == 0) {
-                return this;
-            }
-            if (levels >= path.length) {
-                result.setPath(new String[0]);
-            } else {
-                result.setPath(Arrays.copyOfRange(path, levels, path.length));
-            }
-            return result;
-        } catch (CloneNotSupportedException e) {
-            e.printStackTrace();
+        if (levels == 0) {
+            return this;
         }
-        return null;
-
+        return new Filepath(components, Math.min(start + levels, end), end, name, content, contentWithTags);
     }
 
     @Override
     public String toString() {
-        return "Filepath [path=" + Arrays.toString(path) + ", name=" + name + "]";
+        return "Filepath [path=" + Arrays.toString(getPath()) + ", name=" + name + "]";
     }
 
     public String getPathLast() {
-        if (path.length > 0) {
-            return path[path.length - 1];
+        if (end > start) {
+            return components[end - 1];
         }
         return "";
     }
 
     public int getPathLength() {
-        return path.length;
+        return end - start;
     }
 
-    public String asStringPath() {
-        StringBuilder sb = new StringBuilder(path.length * (11));
-        for (String component : path) {
-            if (sb.length() > 0) {
-                sb.append(File.separator);
+    // the tag components joined by the separator
+    public String getPathKey() {
+        if (pathKey == null) {
+            if (end - start == 1) {
+                pathKey = components[start];
+            } else {
+                StringBuilder sb = new StringBuilder();
+                for (int i = start; i < end; i++) {
+                    if (i > start) {
+                        sb.append(File.separatorChar);
+                    }
+                    sb.append(components[i]);
+                }
+                pathKey = sb.toString();
             }
-            sb.append(component);
         }
-        if (name != null) {
-            sb.append(File.separator).append(Consts.ENDOFTAGS).append(File.separator).append(name);
+        return pathKey;
+    }
+
+    // the tags and the file name, @@ paths have the same key as the @ ones
+    public String asStringPath() {
+        if (key == null) {
+            if (name == null) {
+                key = getPathKey();
+            } else {
+                String pathKey = getPathKey();
+                key = new StringBuilder(pathKey.length() + name.length() + 4).append(pathKey).append(File.separatorChar)
+                        .append(ENDOFTAGS).append(File.separatorChar).append(name).toString();
+            }
         }
-        return sb.toString();
+        return key;
     }
 
     public String getStrippedFilename() {
@@ -127,25 +206,40 @@ public class Filepath implements Cloneable {
         return name;
     }
 
-    public Set<Tag> getTagsEntries() {
-        return HibernateUtil.exec(new HibernateCallback<Set<Tag>>() {
+    public Set<Long> getTagIds() {
+        return new HashSet<Long>(TagDictionary.INSTANCE.getIds(getPath()).values());
+    }
 
-            @SuppressWarnings("unchecked")
-            public Set<Tag> run(Session session) {
-                return new HashSet<Tag>(session.createQuery("from Tag t where t.name in (:tags)").setParameterList("tags", getPath())
-                        .list());
-            }
-        });
+    // tag references for the given session, no queries are made
+    public Set<Tag> getTagsEntries(Session session) {
+        Set<Tag> result = new HashSet<Tag>();
+        for (Long id : getTagIds()) {
+            result.add((Tag) session.load(Tag.class, id));
+        }
+        return result;
     }
 
     public boolean isTagsListPath() {
         return name.endsWith(Consts.TAGSLIST_EXT);
     }
 
-    public void removeTagslistExt() {
-        if (isTagsListPath()) {
-            name = name.substring(0, name.length() - Consts.TAGSLIST_EXT.length());
+    // the path of the file the .tags file is for
+    public Filepath withoutTagslistExt() {
+        if (!isTagsListPath()) {
+            return this;
         }
+        return new Filepath(components, start, end, name.substring(0, name.length() - Consts.TAGSLIST_EXT.length()),
+                content, contentWithTags);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Filepath && ((Filepath) obj).asStringPath().equals(asStringPath());
+    }
+
+    @Override
+    public int hashCode() {
+        return asStringPath().hashCode();
     }
 
 }
@@ -0,0 +1,63 @@
+package ru.rkfg.jtagsfs;
+
+// Count-min sketch of 4-bit counters estimating how often a key was seen recently. All counters are halved once the
+// number of increments reaches ten times the table size so old popularity fades away. Not thread-safe.
+public class FrequencySketch {
+
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int size;
+
+    public FrequencySketch(int maximumSize) {
+        int capacity = Integer.highestOneBit(Math.max(maximumSize, 16) - 1) << 1;
+        table = new long[capacity];
+        tableMask = capacity - 1;
+        sampleSize = 10 * capacity;
+    }
+
+    public int frequency(int hash) {
+        int result = 15;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = slot(hash, i);
+            result = Math.min(result, (int) (table[(int) h & tableMask] >>> offset(h)) & 15);
+        }
+        return result;
+    }
+
+    public void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = slot(hash, i);
+            int index = (int) h & tableMask;
+            int offset = offset(h);
+            if ((table[index] >>> offset & 15) != 15) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = table[i] >>> 1 & RESET_MASK;
+        }
+        size /= 2;
+    }
+
+    private static long slot(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        return h + (h >>> 32);
+    }
+
+    // every long holds 16 counters
+    private static int offset(long h) {
+        return ((int) (h >>> 40) & 15) << 2;
+    }
+}
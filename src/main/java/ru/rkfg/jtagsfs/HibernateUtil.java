@@ -1,5 +1,10 @@
 package ru.rkfg.jtagsfs;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hibernate.FlushMode;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
@@ -11,6 +16,10 @@ public class HibernateUtil {
 
     private static SessionFactory sessionFactory = null;
 
+    private static ThreadLocal<Session> readSessions = new ThreadLocal<Session>();
+    // all open read sessions, they are closed on cleanup
+    private static Set<Session> openReadSessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+
     public static <T> T exec(HibernateCallback<T> callback) {
         T result = null;
         if (sessionFactory != null) {
@@ -31,6 +40,57 @@ public class HibernateUtil {
         return result;
     }
 
+    // Metadata reads run in a read-only session owned by the calling thread, so FUSE threads never wait for each other and
+    // don't pay for opening a session on every call. The connection is only held during the transaction. Staleness rules:
+    // the session is cleared after every outermost call so no entity outlives the call it was loaded in and every call
+    // sees the committed DB state. Anything cached for longer (tags dictionary, index, file cache) is invalidated by the
+    // writers after their commit, not here. A session that failed with a HibernateException is discarded.
+    public static <T> T read(HibernateCallback<T> callback) {
+        if (sessionFactory == null) {
+            return null;
+        }
+        Session session = readSessions.get();
+        if (session == null || !session.isOpen()) {
+            if (session != null) {
+                openReadSessions.remove(session);
+            }
+            session = sessionFactory.openSession();
+            openReadSessions.add(session);
+            session.setDefaultReadOnly(true);
+            session.setFlushMode(FlushMode.MANUAL);
+            readSessions.set(session);
+        }
+        if (session.getTransaction().isActive()) {
+            // nested read on the same thread, the outermost call finishes the transaction
+            return callback.run(session);
+        }
+        try {
+            session.beginTransaction();
+            T result = callback.run(session);
+            session.getTransaction().commit();
+            return result;
+        } catch (HibernateException e) {
+            rollback(session);
+            session.close();
+            openReadSessions.remove(session);
+            readSessions.remove();
+            throw e;
+        } catch (RuntimeException e) {
+            rollback(session);
+            throw e;
+        } finally {
+            if (session.isOpen()) {
+                session.clear();
+            }
+        }
+    }
+
+    private static void rollback(Session session) {
+        if (session.getTransaction().isActive()) {
+            session.getTransaction().rollback();
+        }
+    }
+
     public static void initSessionFactory(String cfgFilename) {
         ServiceRegistry serviceRegistry;
         try {
@@ -46,11 +106,17 @@ public class HibernateUtil {
         }
     }
 
-    public static Session getSession() {
-        return sessionFactory.openSession();
-    }
-
     public static void cleanup() {
+        for (Session session : openReadSessions) {
+            try {
+                if (session.isOpen()) {
+                    session.close();
+                }
+            } catch (HibernateException e) {
+                e.printStackTrace();
+            }
+        }
+        openReadSessions.clear();
         sessionFactory.close();
         sessionFactory = null;
     }
@@ -0,0 +1,478 @@
+package ru.rkfg.jtagsfs;
+
+import java.util.Arrays;
+
+// Roaring-style compressed set of file ids: ids are split into 16-bit high and low parts, every high part owns a container
+// that's either a sorted array of low parts (sparse) or a 65536-bit bitmap (dense).
+public class IdBitmap {
+
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = 1024;
+
+    public interface IdIterator {
+        boolean hasNext();
+
+        long next();
+    }
+
+    private int[] keys;
+    private Container[] containers;
+    private int size;
+    // kept up to date on every change so the tag cardinality is always O(1)
+    private int cardinality;
+
+    public IdBitmap() {
+        this(4);
+    }
+
+    private IdBitmap(int capacity) {
+        keys = new int[capacity];
+        containers = new Container[capacity];
+    }
+
+    public void add(long id) {
+        int key = high(id);
+        int index = indexOf(key);
+        if (index >= 0) {
+            int before = containers[index].cardinality();
+            containers[index] = containers[index].add(low(id));
+            cardinality += containers[index].cardinality() - before;
+        } else {
+            insertAt(-index - 1, key, new ArrayContainer(1).add(low(id)));
+            cardinality++;
+        }
+    }
+
+    public void remove(long id) {
+        int index = indexOf(high(id));
+        if (index < 0) {
+            return;
+        }
+        int before = containers[index].cardinality();
+        Container container = containers[index].remove(low(id));
+        cardinality += container.cardinality() - before;
+        if (container.cardinality() == 0) {
+            removeAt(index);
+        } else {
+            containers[index] = container;
+        }
+    }
+
+    public boolean contains(long id) {
+        int index = indexOf(high(id));
+        return index >= 0 && containers[index].contains(low(id));
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public IdBitmap copy() {
+        IdBitmap result = new IdBitmap(Math.max(size, 1));
+        for (int i = 0; i < size; i++) {
+            result.append(keys[i], containers[i].copy());
+        }
+        return result;
+    }
+
+    public IdBitmap and(IdBitmap other) {
+        IdBitmap result = new IdBitmap(Math.max(Math.min(size, other.size), 1));
+        int i = 0, j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                result.appendNonEmpty(keys[i], containers[i].and(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public IdBitmap or(IdBitmap other) {
+        IdBitmap result = new IdBitmap(Math.max(size + other.size, 1));
+        int i = 0, j = 0;
+        while (i < size || j < other.size) {
+            if (j >= other.size || i < size && keys[i] < other.keys[j]) {
+                result.append(keys[i], containers[i].copy());
+                i++;
+            } else if (i >= size || keys[i] > other.keys[j]) {
+                result.append(other.keys[j], other.containers[j].copy());
+                j++;
+            } else {
+                result.append(keys[i], containers[i].or(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public IdBitmap andNot(IdBitmap other) {
+        IdBitmap result = new IdBitmap(Math.max(size, 1));
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) {
+                j++;
+            }
+            if (j < other.size && other.keys[j] == keys[i]) {
+                result.appendNonEmpty(keys[i], containers[i].andNot(other.containers[j]));
+            } else {
+                result.append(keys[i], containers[i].copy());
+            }
+        }
+        return result;
+    }
+
+    public IdIterator iterator() {
+        return new IdIterator() {
+
+            int index = 0;
+            int nextLow = size > 0 ? containers[0].nextSetBit(0) : -1;
+
+            @Override
+            public boolean hasNext() {
+                return nextLow >= 0;
+            }
+
+            @Override
+            public long next() {
+                long result = (long) keys[index] << 16 | nextLow;
+                nextLow = nextLow < 0xFFFF ? containers[index].nextSetBit(nextLow + 1) : -1;
+                while (nextLow < 0 && ++index < size) {
+                    nextLow = containers[index].nextSetBit(0);
+                }
+                return result;
+            }
+        };
+    }
+
+    private static int high(long id) {
+        return (int) (id >>> 16);
+    }
+
+    private static int low(long id) {
+        return (int) (id & 0xFFFF);
+    }
+
+    private int indexOf(int key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > keys.length) {
+            int newCapacity = Math.max(capacity, keys.length * 2);
+            keys = Arrays.copyOf(keys, newCapacity);
+            containers = Arrays.copyOf(containers, newCapacity);
+        }
+    }
+
+    private void insertAt(int index, int key, Container container) {
+        ensureCapacity(size + 1);
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        size++;
+    }
+
+    private void removeAt(int index) {
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+        containers[--size] = null;
+    }
+
+    private void append(int key, Container container) {
+        ensureCapacity(size + 1);
+        keys[size] = key;
+        containers[size++] = container;
+        cardinality += container.cardinality();
+    }
+
+    private void appendNonEmpty(int key, Container container) {
+        if (container.cardinality() > 0) {
+            append(key, container);
+        }
+    }
+
+    private static abstract class Container {
+
+        abstract Container add(int low);
+
+        abstract Container remove(int low);
+
+        abstract boolean contains(int low);
+
+        abstract int cardinality();
+
+        abstract int nextSetBit(int from);
+
+        abstract Container copy();
+
+        Container and(Container other) {
+            if (this instanceof BitmapContainer && other instanceof BitmapContainer) {
+                return ((BitmapContainer) this).andBitmap((BitmapContainer) other);
+            }
+            Container small = cardinality() <= other.cardinality() ? this : other;
+            Container large = small == this ? other : this;
+            ArrayContainer result = new ArrayContainer(small.cardinality());
+            for (int low = small.nextSetBit(0); low >= 0; low = low < 0xFFFF ? small.nextSetBit(low + 1) : -1) {
+                if (large.contains(low)) {
+                    result.append(low);
+                }
+            }
+            return result;
+        }
+
+        Container or(Container other) {
+            if (this instanceof ArrayContainer && other instanceof ArrayContainer
+                    && cardinality() + other.cardinality() <= ARRAY_MAX) {
+                return ((ArrayContainer) this).merge((ArrayContainer) other);
+            }
+            BitmapContainer result = toBitmap();
+            result.setAll(other);
+            return result;
+        }
+
+        Container andNot(Container other) {
+            if (this instanceof ArrayContainer) {
+                ArrayContainer result = new ArrayContainer(cardinality());
+                for (int low = nextSetBit(0); low >= 0; low = low < 0xFFFF ? nextSetBit(low + 1) : -1) {
+                    if (!other.contains(low)) {
+                        result.append(low);
+                    }
+                }
+                return result;
+            }
+            BitmapContainer result = toBitmap();
+            result.clearAll(other);
+            return result.optimize();
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer result = new BitmapContainer();
+            result.setAll(this);
+            return result;
+        }
+    }
+
+    private static class ArrayContainer extends Container {
+        // char is the unsigned 16-bit type so the natural order is the right one
+        char[] values;
+        int cardinality;
+
+        ArrayContainer(int capacity) {
+            values = new char[Math.max(capacity, 1)];
+        }
+
+        void append(int low) {
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(values.length * 2, ARRAY_MAX));
+            }
+            values[cardinality++] = (char) low;
+        }
+
+        @Override
+        Container add(int low) {
+            int index = Arrays.binarySearch(values, 0, cardinality, (char) low);
+            if (index >= 0) {
+                return this;
+            }
+            if (cardinality >= ARRAY_MAX) {
+                return toBitmap().add(low);
+            }
+            index = -index - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(values.length * 2, ARRAY_MAX));
+            }
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = (char) low;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(int low) {
+            int index = Arrays.binarySearch(values, 0, cardinality, (char) low);
+            if (index >= 0) {
+                System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(int low) {
+            return Arrays.binarySearch(values, 0, cardinality, (char) low) >= 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        int nextSetBit(int from) {
+            int index = Arrays.binarySearch(values, 0, cardinality, (char) from);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index < cardinality ? values[index] : -1;
+        }
+
+        @Override
+        Container copy() {
+            ArrayContainer result = new ArrayContainer(cardinality);
+            System.arraycopy(values, 0, result.values, 0, cardinality);
+            result.cardinality = cardinality;
+            return result;
+        }
+
+        ArrayContainer merge(ArrayContainer other) {
+            ArrayContainer result = new ArrayContainer(cardinality + other.cardinality);
+            int i = 0, j = 0;
+            while (i < cardinality || j < other.cardinality) {
+                if (j >= other.cardinality || i < cardinality && values[i] < other.values[j]) {
+                    result.append(values[i++]);
+                } else if (i >= cardinality || values[i] > other.values[j]) {
+                    result.append(other.values[j++]);
+                } else {
+                    result.append(values[i++]);
+                    j++;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class BitmapContainer extends Container {
+        long[] words = new long[WORDS];
+        int cardinality;
+
+        @Override
+        Container add(int low) {
+            long mask = 1L << low;
+            if ((words[low >>> 6] & mask) == 0) {
+                words[low >>> 6] |= mask;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(int low) {
+            long mask = 1L << low;
+            if ((words[low >>> 6] & mask) != 0) {
+                words[low >>> 6] &= ~mask;
+                cardinality--;
+            }
+            return optimize();
+        }
+
+        @Override
+        boolean contains(int low) {
+            return (words[low >>> 6] & 1L << low) != 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        int nextSetBit(int from) {
+            int index = from >>> 6;
+            long word = words[index] & -1L << from;
+            while (true) {
+                if (word != 0) {
+                    return index * 64 + Long.numberOfTrailingZeros(word);
+                }
+                if (++index == WORDS) {
+                    return -1;
+                }
+                word = words[index];
+            }
+        }
+
+        @Override
+        Container copy() {
+            BitmapContainer result = new BitmapContainer();
+            System.arraycopy(words, 0, result.words, 0, WORDS);
+            result.cardinality = cardinality;
+            return result;
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            return (BitmapContainer) copy();
+        }
+
+        void setAll(Container other) {
+            if (other instanceof BitmapContainer) {
+                long[] otherWords = ((BitmapContainer) other).words;
+                for (int i = 0; i < WORDS; i++) {
+                    words[i] |= otherWords[i];
+                }
+                recount();
+            } else {
+                ArrayContainer array = (ArrayContainer) other;
+                for (int i = 0; i < array.cardinality; i++) {
+                    add(array.values[i]);
+                }
+            }
+        }
+
+        void clearAll(Container other) {
+            if (other instanceof BitmapContainer) {
+                long[] otherWords = ((BitmapContainer) other).words;
+                for (int i = 0; i < WORDS; i++) {
+                    words[i] &= ~otherWords[i];
+                }
+                recount();
+            } else {
+                ArrayContainer array = (ArrayContainer) other;
+                for (int i = 0; i < array.cardinality; i++) {
+                    long mask = 1L << array.values[i];
+                    if ((words[array.values[i] >>> 6] & mask) != 0) {
+                        words[array.values[i] >>> 6] &= ~mask;
+                        cardinality--;
+                    }
+                }
+            }
+        }
+
+        Container andBitmap(BitmapContainer other) {
+            BitmapContainer result = new BitmapContainer();
+            for (int i = 0; i < WORDS; i++) {
+                result.words[i] = words[i] & other.words[i];
+            }
+            result.recount();
+            return result.optimize();
+        }
+
+        Container optimize() {
+            if (cardinality > ARRAY_MAX) {
+                return this;
+            }
+            ArrayContainer result = new ArrayContainer(cardinality);
+            for (int low = nextSetBit(0); low >= 0; low = low < 0xFFFF ? nextSetBit(low + 1) : -1) {
+                result.append(low);
+            }
+            return result;
+        }
+
+        private void recount() {
+            cardinality = 0;
+            for (long word : words) {
+                cardinality += Long.bitCount(word);
+            }
+        }
+    }
+}
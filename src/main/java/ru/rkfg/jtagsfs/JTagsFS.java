@@ -3,8 +3,10 @@ package ru.rkfg.jtagsfs;
 import static ru.rkfg.jtagsfs.Consts.*;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
 
 import net.fusejna.DirectoryFiller;
 import net.fusejna.ErrorCodes;
@@ -33,13 +35,35 @@ public class JTagsFS extends FuseFilesystemAdapterFull {
             path = System.getProperty("user.home") + path.substring(1);
         }
         HibernateUtil.initSessionFactory("hibernate.cfg.xml");
-        new File(STORAGE).mkdirs();
+        TagDictionary.INSTANCE.load();
+        TagIndex.INSTANCE.build();
+        try {
+            Storage.INSTANCE.init();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        Thread repair = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                long fixed = FileAttributes.repair(ATTRIBUTES_VERIFY);
+                if (fixed > 0) {
+                    System.err.println("Attributes of " + fixed + " files were fixed");
+                }
+            }
+        }, "attributes repair");
+        repair.setDaemon(true);
+        repair.start();
         new JTagsFS().log(false).mount(path);
     }
 
+    // the kernel caching options go first so the ones given explicitly take precedence
     @Override
     protected String[] getOptions() {
-        return options;
+        List<String> result = KernelCache.INSTANCE.getOptions();
+        result.addAll(Arrays.asList(options));
+        return result.toArray(new String[result.size()]);
     }
 
     @Override
@@ -144,6 +168,26 @@ public class JTagsFS extends FuseFilesystemAdapterFull {
         }
     }
 
+    @Override
+    public int flush(String path, FileInfoWrapper info) {
+        try {
+            manager.flush(path, info);
+            return 0;
+        } catch (FSHandlerException e) {
+            return -ErrorCodes.EIO();
+        }
+    }
+
+    @Override
+    public int fsync(String path, int datasync, FileInfoWrapper info) {
+        try {
+            manager.fsync(path, datasync != 0, info);
+            return 0;
+        } catch (FSHandlerException e) {
+            return -ErrorCodes.EIO();
+        }
+    }
+
     @Override
     public int release(String path, FileInfoWrapper info) {
         try {
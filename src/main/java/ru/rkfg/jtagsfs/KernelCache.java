@@ -0,0 +1,76 @@
+package ru.rkfg.jtagsfs;
+
+import static ru.rkfg.jtagsfs.Consts.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+// Kernel side caching. The entries, attributes and misses are cached by the kernel for the configured timeouts, that's
+// passed as the mount options. The page cache of a file is kept between opens only if the file at that path is still
+// the same and didn't change since the path was closed. Every change goes through us, a write or truncate through any
+// path changes the stored mtime or size and a rename or retag makes the path resolve to another file, so a stale page
+// cache is never reused. The paths are separate inodes for the kernel, so a path that was open while the file was
+// changed through another one isn't remembered at all, its pages miss that change. fuse-jna has no notification API, the entries and attributes are only refreshed when their
+// timeouts expire, those are short by default for that reason.
+public enum KernelCache {
+    INSTANCE;
+
+    // the file state as the kernel cached it when the path was closed
+    private static class State {
+        long id;
+        long size;
+        long mtime;
+
+        State(long id, long size, long mtime) {
+            this.id = id;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    private static final int MAXPATHS = 4096;
+
+    private Map<String, State> closed = new LinkedHashMap<String, State>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 5016238469152378413L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, State> eldest) {
+            return size() > MAXPATHS;
+        }
+    };
+
+    public List<String> getOptions() {
+        List<String> result = new ArrayList<String>();
+        result.add("-o");
+        result.add("entry_timeout=" + KERNEL_ENTRY_TIMEOUT + ",attr_timeout=" + KERNEL_ATTR_TIMEOUT + ",negative_timeout="
+                + KERNEL_NEGATIVE_TIMEOUT);
+        return result;
+    }
+
+    // whether the kernel may keep the cached pages of the path being opened
+    public synchronized boolean keepCache(String strPath, long id, FileAttributes attributes) {
+        if (!KERNEL_KEEP_CACHE) {
+            return false;
+        }
+        State state = closed.get(strPath);
+        return state != null && state.id == id && state.size == attributes.getSize()
+                && state.mtime == attributes.getMtime();
+    }
+
+    // The state is only kept if the pages cached for the path have all the changes made while it was open, otherwise
+    // they may be stale and mustn't be kept on the next open.
+    public synchronized void released(String strPath, long id, FileAttributes attributes, boolean changedElsewhere) {
+        if (!KERNEL_KEEP_CACHE) {
+            return;
+        }
+        if (changedElsewhere) {
+            closed.remove(strPath);
+        } else {
+            closed.put(strPath, new State(id, attributes.getSize(), attributes.getMtime()));
+        }
+    }
+}
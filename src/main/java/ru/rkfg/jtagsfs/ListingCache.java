@@ -0,0 +1,140 @@
+package ru.rkfg.jtagsfs;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ru.rkfg.jtagsfs.MetadataEventBus.MetadataListener;
+
+// Directory listings by the normalized tag expression. Every listing is stamped with the ids and generations of its
+// tags, a generation is bumped whenever a file joins or leaves the tag, so a listing stays valid until one of its tags
+// changes. Expressions that start from all files (a group without included tags) also depend on the generation of all
+// files, listings with tags depend on the tag names too.
+public class ListingCache implements MetadataListener {
+
+    private BoundedCache<String, Listing> listings;
+    private ConcurrentMap<Long, AtomicLong> tagGenerations = new ConcurrentHashMap<Long, AtomicLong>();
+    private AtomicLong filesGeneration = new AtomicLong();
+    private AtomicLong namesGeneration = new AtomicLong();
+
+    private static class Listing {
+        long[] stamp;
+        String[] names;
+
+        Listing(long[] stamp, String[] names) {
+            this.stamp = stamp;
+            this.names = names;
+        }
+    }
+
+    public ListingCache(int maxEntries, long maxWeight, long expireAfterAccess, BoundedCache.Budget budget) {
+        listings = new BoundedCache<String, Listing>("listings", maxEntries, maxWeight, expireAfterAccess,
+                new BoundedCache.Weigher<String, Listing>() {
+
+                    @Override
+                    public int weigh(String key, Listing value) {
+                        int result = 2 * key.length() + 8 * value.stamp.length + 96;
+                        for (String name : value.names) {
+                            result += 2 * name.length() + 48;
+                        }
+                        return result;
+                    }
+                }, budget);
+        MetadataEventBus.INSTANCE.subscribe(this);
+    }
+
+    public static String getKey(TagExpression expression, boolean withTags) {
+        return (withTags ? Consts.TAGGEDCONTENT : Consts.ENDOFTAGS) + "/" + expression.getKey();
+    }
+
+    // The current stamp of the expression, it has to be taken before the listing is made so a change that happens
+    // meanwhile makes the listing stale.
+    public long[] getStamp(TagExpression expression, boolean withTags) {
+        String[] tagNames = expression.getTagNames();
+        long[] stamp = new long[2 * tagNames.length + 2];
+        for (int i = 0; i < tagNames.length; i++) {
+            Long id = TagDictionary.INSTANCE.getId(tagNames[i]);
+            if (id != null) {
+                stamp[2 * i] = id;
+                stamp[2 * i + 1] = getGeneration(id).get();
+            }
+        }
+        for (TagExpression.Group group : expression.getGroups()) {
+            if (group.getIncluded().length == 0) {
+                stamp[stamp.length - 2] = filesGeneration.get();
+            }
+        }
+        if (withTags) {
+            stamp[stamp.length - 1] = namesGeneration.get();
+        }
+        return stamp;
+    }
+
+    // the listing if it's still valid for the given current stamp
+    public String[] get(String key, long[] stamp) {
+        Listing listing = listings.get(key);
+        if (listing == null) {
+            return null;
+        }
+        if (!Arrays.equals(listing.stamp, stamp)) {
+            listings.remove(key);
+            return null;
+        }
+        return listing.names;
+    }
+
+    public void put(String key, long[] stamp, List<String> names) {
+        listings.put(key, new Listing(stamp, names.toArray(new String[names.size()])));
+    }
+
+    public BoundedCache<String, Listing> getCache() {
+        return listings;
+    }
+
+    public void clear() {
+        listings.clear();
+    }
+
+    @Override
+    public void onEvent(MetadataEvent event) {
+        switch (event.getType()) {
+        case TAG_RENAMED:
+        case TAG_DELETED:
+            bump(event.getId());
+            namesGeneration.incrementAndGet();
+            break;
+        case FILE_CREATED:
+        case FILE_RETAGGED:
+        case FILE_DELETED:
+            Set<Long> changed = new HashSet<Long>(event.getOldTags());
+            changed.addAll(event.getTags());
+            for (Long tagId : changed) {
+                bump(tagId);
+            }
+            filesGeneration.incrementAndGet();
+            break;
+        default:
+            break;
+        }
+    }
+
+    private AtomicLong getGeneration(Long tagId) {
+        AtomicLong generation = tagGenerations.get(tagId);
+        if (generation == null) {
+            AtomicLong created = new AtomicLong();
+            generation = tagGenerations.putIfAbsent(tagId, created);
+            if (generation == null) {
+                generation = created;
+            }
+        }
+        return generation;
+    }
+
+    private void bump(Long tagId) {
+        getGeneration(tagId).incrementAndGet();
+    }
+}
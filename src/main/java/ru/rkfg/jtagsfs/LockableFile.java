@@ -1,27 +1,99 @@
 package ru.rkfg.jtagsfs;
 
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+// An open storage file shared by all handles of the same path. Reads and writes are positional so they don't need any
+// locking and don't disturb each other.
 public class LockableFile {
-    int lockCount;
+    AtomicInteger lockCount = new AtomicInteger(1);
     RandomAccessFile stream;
+    FileChannel channel;
+    long id;
+    FileAttributes attributes;
+    boolean mapped;
+    // changes made through this path, the kernel sees them in its page cache of the path
+    AtomicLong changes = new AtomicLong();
 
-    public LockableFile(RandomAccessFile stream) {
+    // files big enough when opened are read through the shared mappings
+    public LockableFile(RandomAccessFile stream, long id, FileAttributes attributes) throws IOException {
         this.stream = stream;
-        lockCount = 1;
+        this.id = id;
+        this.attributes = attributes;
+        channel = stream.getChannel();
+        mapped = MappedRegionCache.isEnabled() && channel.size() >= Consts.MMAP_THRESHOLD;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public FileAttributes getAttributes() {
+        return attributes;
     }
 
     public RandomAccessFile getFile() {
         return stream;
     }
 
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    // returns 0 if the file was released completely meanwhile, it's closed then and has to be opened again
     public int lock() {
-        return ++lockCount;
+        while (true) {
+            int count = lockCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            if (lockCount.compareAndSet(count, count + 1)) {
+                return count + 1;
+            }
+        }
     }
 
     public int release() {
-        return --lockCount;
+        return lockCount.decrementAndGet();
     }
 
-}
+    public int readContent(ByteBuffer buffer, long offset) throws IOException {
+        if (mapped) {
+            return MappedRegionCache.INSTANCE.read(this, buffer, offset);
+        }
+        return read(buffer, offset);
+    }
+
+    public int read(ByteBuffer buffer, long offset) throws IOException {
+        int read = channel.read(buffer, offset);
+        return read < 0 ? 0 : read;
+    }
 
+    public void write(ByteBuffer buffer, long offset) throws IOException {
+        long end = offset + buffer.remaining();
+        writeOut(buffer, offset);
+        written(end);
+    }
+
+    // writes the data without updating the attributes, for the writes they were updated for already
+    public void writeOut(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    // the data up to the end offset was written through this path
+    public void written(long end) {
+        changes.incrementAndGet();
+        attributes.written(end);
+    }
+
+    public long getChanges() {
+        return changes.get();
+    }
+
+}
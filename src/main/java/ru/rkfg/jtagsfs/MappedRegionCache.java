@@ -0,0 +1,283 @@
+package ru.rkfg.jtagsfs;
+
+import static ru.rkfg.jtagsfs.Consts.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Read-only mappings of fixed-size regions of the storage files, shared by all handles of the same file. Every file has
+// its own lock so the reads of different files don't wait for each other, and the mapping itself is made outside of it.
+// A region is pinned while being read. When there are too many regions the ones not used lately are dropped in the
+// order they were mapped, the recently used and the pinned ones get another chance. A mapping must not be read after
+// the file is truncated below it, so truncation blocks new mappings of the file and waits until nothing is pinned.
+public enum MappedRegionCache {
+    INSTANCE;
+
+    private static class Region {
+        FileRegions owner;
+        long index;
+        long start;
+        int length;
+        MappedByteBuffer buffer;
+        // guarded by the owner
+        int readers;
+        volatile boolean dropped;
+        volatile boolean used;
+
+        Region(FileRegions owner, long index, long start, int length, MappedByteBuffer buffer) {
+            this.owner = owner;
+            this.index = index;
+            this.start = start;
+            this.length = length;
+            this.buffer = buffer;
+        }
+    }
+
+    // the regions of one file, all fields are guarded by it
+    private class FileRegions {
+        long fileId;
+        Map<Long, Region> regions = new HashMap<Long, Region>();
+        // truncations in progress and started so far
+        int changing;
+        long changes;
+        // pinned regions of the file, including the ones already dropped
+        int readers;
+        // not in the files map anymore, a new one has to be taken
+        boolean removed;
+
+        FileRegions(long fileId) {
+            this.fileId = fileId;
+        }
+
+        // a mapped region that is unused and not recently used is dropped
+        synchronized boolean evict(Region region) {
+            if (region.dropped) {
+                return true;
+            }
+            if (region.readers > 0 || region.used) {
+                region.used = false;
+                return false;
+            }
+            drop(region);
+            removeIfUnused();
+            return true;
+        }
+
+        void drop(Region region) {
+            region.dropped = true;
+            regions.remove(region.index);
+            mapped.decrementAndGet();
+        }
+
+        void removeIfUnused() {
+            if (regions.isEmpty() && changing == 0 && readers == 0) {
+                removed = true;
+                files.remove(fileId, this);
+            }
+        }
+
+        synchronized void unpin(Region region) {
+            region.readers--;
+            if (--readers == 0) {
+                if (changing > 0) {
+                    notifyAll();
+                } else {
+                    removeIfUnused();
+                }
+            }
+        }
+    }
+
+    private ConcurrentMap<Long, FileRegions> files = new ConcurrentHashMap<Long, FileRegions>();
+    // the mapped regions in the order they were mapped, the dropped ones are skipped
+    private Queue<Region> mappingOrder = new ConcurrentLinkedQueue<Region>();
+    private AtomicInteger queued = new AtomicInteger();
+    private AtomicInteger mapped = new AtomicInteger();
+
+    public static boolean isEnabled() {
+        return MMAP_THRESHOLD > 0;
+    }
+
+    private FileRegions getFileRegions(long fileId) {
+        FileRegions fileRegions = files.get(fileId);
+        if (fileRegions == null) {
+            fileRegions = new FileRegions(fileId);
+            FileRegions existing = files.putIfAbsent(fileId, fileRegions);
+            if (existing != null) {
+                fileRegions = existing;
+            }
+        }
+        return fileRegions;
+    }
+
+    // Copies the file content at the offset to the buffer, the parts that can't be mapped are read from the channel.
+    public int read(LockableFile file, ByteBuffer buffer, long offset) throws IOException {
+        int result = 0;
+        while (buffer.hasRemaining()) {
+            Region region = acquire(file, offset);
+            if (region == null) {
+                return result + file.read(buffer, offset);
+            }
+            try {
+                int start = (int) (offset - region.start);
+                if (start >= region.length) {
+                    break;
+                }
+                int length = Math.min(buffer.remaining(), region.length - start);
+                ByteBuffer source = region.buffer.duplicate();
+                source.position(start).limit(start + length);
+                buffer.put(source);
+                result += length;
+                offset += length;
+            } finally {
+                region.owner.unpin(region);
+            }
+        }
+        return result;
+    }
+
+    // the pinned region of the offset, null if it can't be mapped now
+    private Region acquire(LockableFile file, long offset) throws IOException {
+        long index = offset / MMAP_REGION;
+        long start = index * MMAP_REGION;
+        while (true) {
+            FileRegions fileRegions = getFileRegions(file.getId());
+            int mappedLength;
+            long changes;
+            synchronized (fileRegions) {
+                if (fileRegions.removed) {
+                    continue;
+                }
+                if (fileRegions.changing > 0) {
+                    return null;
+                }
+                Region region = fileRegions.regions.get(index);
+                if (region != null && (region.length == MMAP_REGION || offset < start + region.length)) {
+                    return pin(fileRegions, region);
+                }
+                mappedLength = region == null ? 0 : region.length;
+                changes = fileRegions.changes;
+            }
+            // not mapped yet or the file has grown past the last mapped region
+            long length = Math.min(MMAP_REGION, file.getChannel().size() - start);
+            if (length <= mappedLength) {
+                // nothing to map past the end of file
+                return null;
+            }
+            MappedByteBuffer buffer = file.getChannel().map(MapMode.READ_ONLY, start, length);
+            Region region;
+            synchronized (fileRegions) {
+                if (fileRegions.removed) {
+                    continue;
+                }
+                if (fileRegions.changing > 0 || fileRegions.changes != changes) {
+                    // the file is or was truncated while mapping, the new mapping may be past the end already
+                    return null;
+                }
+                Region current = fileRegions.regions.get(index);
+                if (current != null && current.length >= length) {
+                    // mapped by another reader meanwhile
+                    return pin(fileRegions, current);
+                }
+                if (current != null) {
+                    fileRegions.drop(current);
+                }
+                region = new Region(fileRegions, index, start, (int) length, buffer);
+                fileRegions.regions.put(index, region);
+                mapped.incrementAndGet();
+                pin(fileRegions, region);
+            }
+            mappingOrder.add(region);
+            queued.incrementAndGet();
+            evictOverflow();
+            return region;
+        }
+    }
+
+    // called with the owner locked
+    private Region pin(FileRegions fileRegions, Region region) {
+        region.readers++;
+        region.used = true;
+        fileRegions.readers++;
+        return region;
+    }
+
+    // Drops regions while there are too many of them. The regions dropped by truncations stay in the queue until they
+    // come up, the queue is cleaned from them when they are a lot.
+    private void evictOverflow() {
+        // enough for two passes, one clears the used marks and the next one drops the regions
+        int attempts = 2 * queued.get();
+        while (attempts-- > 0) {
+            boolean overflow = mapped.get() > MMAP_MAXREGIONS;
+            if (!overflow && queued.get() <= 2 * MMAP_MAXREGIONS) {
+                return;
+            }
+            Region region = mappingOrder.poll();
+            if (region == null) {
+                return;
+            }
+            queued.decrementAndGet();
+            if (overflow ? !region.owner.evict(region) : !region.dropped) {
+                mappingOrder.add(region);
+                queued.incrementAndGet();
+            }
+        }
+    }
+
+    // Drops the mappings of the file and keeps new ones from being made until endChange, returns when nobody reads any
+    // mapping of the file anymore.
+    public void beginChange(long fileId) {
+        while (true) {
+            FileRegions fileRegions = getFileRegions(fileId);
+            synchronized (fileRegions) {
+                if (fileRegions.removed) {
+                    continue;
+                }
+                fileRegions.changing++;
+                fileRegions.changes++;
+                for (Region region : fileRegions.regions.values().toArray(new Region[0])) {
+                    fileRegions.drop(region);
+                }
+                boolean interrupted = false;
+                while (fileRegions.readers > 0) {
+                    try {
+                        fileRegions.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+        }
+    }
+
+    public void endChange(long fileId) {
+        FileRegions fileRegions = files.get(fileId);
+        if (fileRegions == null) {
+            return;
+        }
+        synchronized (fileRegions) {
+            if (fileRegions.changing > 0 && --fileRegions.changing == 0) {
+                fileRegions.removeIfUnused();
+            }
+        }
+    }
+
+    // the file is gone, its mappings aren't needed anymore
+    public void invalidate(long fileId) {
+        beginChange(fileId);
+        endChange(fileId);
+    }
+}
@@ -0,0 +1,93 @@
+package ru.rkfg.jtagsfs;
+
+import java.util.Collections;
+import java.util.Set;
+
+// A committed change of tags or files. Tag events carry the tag id and names, file events carry the file id, names
+// and tag ids before and after the change.
+public class MetadataEvent {
+
+    public enum Type {
+        TAG_CREATED, TAG_RENAMED, TAG_DELETED, FILE_CREATED, FILE_RETAGGED, FILE_CHANGED, FILE_DELETED
+    }
+
+    private static final Set<Long> NOTAGS = Collections.emptySet();
+
+    private Type type;
+    private Long id;
+    private String oldName;
+    private String name;
+    private Set<Long> oldTags;
+    private Set<Long> tags;
+
+    private MetadataEvent(Type type, Long id, String oldName, String name, Set<Long> oldTags, Set<Long> tags) {
+        this.type = type;
+        this.id = id;
+        this.oldName = oldName;
+        this.name = name;
+        this.oldTags = oldTags;
+        this.tags = tags;
+    }
+
+    public static MetadataEvent tagCreated(Long id, String name) {
+        return new MetadataEvent(Type.TAG_CREATED, id, null, name, NOTAGS, NOTAGS);
+    }
+
+    // renamed or moved to another parent
+    public static MetadataEvent tagRenamed(Long id, String oldName, String name) {
+        return new MetadataEvent(Type.TAG_RENAMED, id, oldName, name, NOTAGS, NOTAGS);
+    }
+
+    public static MetadataEvent tagDeleted(Long id, String name) {
+        return new MetadataEvent(Type.TAG_DELETED, id, name, null, NOTAGS, NOTAGS);
+    }
+
+    public static MetadataEvent fileCreated(Long id, String name, Set<Long> tags) {
+        return new MetadataEvent(Type.FILE_CREATED, id, null, name, NOTAGS, tags);
+    }
+
+    // tagged, untagged or renamed
+    public static MetadataEvent fileRetagged(Long id, String oldName, String name, Set<Long> oldTags, Set<Long> tags) {
+        return new MetadataEvent(Type.FILE_RETAGGED, id, oldName, name, oldTags, tags);
+    }
+
+    // the stored size or times changed
+    public static MetadataEvent fileChanged(Long id, String name) {
+        return new MetadataEvent(Type.FILE_CHANGED, id, name, name, NOTAGS, NOTAGS);
+    }
+
+    public static MetadataEvent fileDeleted(Long id, String name, Set<Long> tags) {
+        return new MetadataEvent(Type.FILE_DELETED, id, name, null, tags, NOTAGS);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    // the name before the change, null for creation
+    public String getOldName() {
+        return oldName;
+    }
+
+    // the name after the change, null for deletion
+    public String getName() {
+        return name;
+    }
+
+    public Set<Long> getOldTags() {
+        return oldTags;
+    }
+
+    public Set<Long> getTags() {
+        return tags;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + id + " " + oldName + " -> " + name;
+    }
+}
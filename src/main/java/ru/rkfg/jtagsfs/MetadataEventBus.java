@@ -0,0 +1,35 @@
+package ru.rkfg.jtagsfs;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Delivers committed tag and file changes to the caches. Events are published by the thread that made the change right
+// after the commit and are handled synchronously so the stale entries are gone when the operation returns.
+public enum MetadataEventBus {
+    INSTANCE;
+
+    public interface MetadataListener {
+        void onEvent(MetadataEvent event);
+    }
+
+    private List<MetadataListener> listeners = new CopyOnWriteArrayList<MetadataListener>();
+
+    public void subscribe(MetadataListener listener) {
+        listeners.add(listener);
+    }
+
+    public void unsubscribe(MetadataListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void publish(MetadataEvent event) {
+        for (MetadataListener listener : listeners) {
+            try {
+                listener.onEvent(event);
+            } catch (RuntimeException e) {
+                System.err.println("Failed to handle " + event + ":");
+                e.printStackTrace();
+            }
+        }
+    }
+}
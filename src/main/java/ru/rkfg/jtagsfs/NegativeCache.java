@@ -0,0 +1,155 @@
+package ru.rkfg.jtagsfs;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Paths that were looked up and not found. The confirmed misses are grouped by the file name in a bounded LRU so
+// creating or retagging a file drops every path it could have become visible at. A rotating Bloom filter of the missed
+// paths goes in front of it so the lookups of existing files don't touch the LRU at all.
+public class NegativeCache {
+
+    // remembered missed paths per file name, the oldest are forgotten first
+    private static final int MAXPATHS = 16;
+    private static final int HASHES = 7;
+
+    private static class BloomFilter {
+        AtomicLongArray bits;
+        AtomicInteger count = new AtomicInteger();
+        int mask;
+
+        BloomFilter(int capacity) {
+            // ~10 bits per entry give about 1% of false positives with 7 hashes
+            int size = Integer.highestOneBit(Math.max(capacity * 10, 64) - 1) << 1;
+            bits = new AtomicLongArray(size >>> 6);
+            mask = size - 1;
+        }
+
+        boolean mightContain(int hash) {
+            int h2 = hash >>> 16 | hash << 16 | 1;
+            for (int i = 0; i < HASHES; i++) {
+                int bit = hash + i * h2 & mask;
+                if ((bits.get(bit >>> 6) & 1L << bit) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void put(int hash) {
+            int h2 = hash >>> 16 | hash << 16 | 1;
+            for (int i = 0; i < HASHES; i++) {
+                int bit = hash + i * h2 & mask;
+                long word;
+                do {
+                    word = bits.get(bit >>> 6);
+                } while ((word & 1L << bit) == 0 && !bits.compareAndSet(bit >>> 6, word, word | 1L << bit));
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    private int capacity;
+    private volatile BloomFilter current;
+    private volatile BloomFilter previous;
+    private BoundedCache<String, String[]> names;
+    // bumped on every invalidation, a lookup that started before it can't be trusted to be a miss anymore
+    private AtomicLong epoch = new AtomicLong();
+
+    public NegativeCache(int maxEntries, long maxWeight, long expireAfterAccess, BoundedCache.Budget budget) {
+        capacity = maxEntries;
+        current = new BloomFilter(capacity);
+        previous = new BloomFilter(capacity);
+        names = new BoundedCache<String, String[]>("nonexistent", maxEntries, maxWeight, expireAfterAccess,
+                new BoundedCache.Weigher<String, String[]>() {
+
+                    @Override
+                    public int weigh(String key, String[] value) {
+                        int result = 2 * key.length() + 64;
+                        for (String path : value) {
+                            result += 2 * path.length() + 48;
+                        }
+                        return result;
+                    }
+                }, budget);
+    }
+
+    public long getEpoch() {
+        return epoch.get();
+    }
+
+    public boolean contains(String name, String strPath) {
+        int hash = hash(strPath);
+        if (!current.mightContain(hash) && !previous.mightContain(hash)) {
+            return false;
+        }
+        String[] paths = names.get(name);
+        if (paths != null) {
+            for (String path : paths) {
+                if (path.equals(strPath)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // the miss is only remembered if nothing was invalidated since the lookup started at the given epoch
+    public synchronized void add(String name, String strPath, long lookupEpoch) {
+        if (epoch.get() != lookupEpoch) {
+            return;
+        }
+        String[] paths = names.get(name);
+        String[] result;
+        if (paths == null) {
+            result = new String[] { strPath };
+        } else {
+            for (String path : paths) {
+                if (path.equals(strPath)) {
+                    // still remembered but its generation of the filter may be gone
+                    int hash = hash(strPath);
+                    if (!current.mightContain(hash)) {
+                        putHash(hash);
+                    }
+                    return;
+                }
+            }
+            int kept = Math.min(paths.length, MAXPATHS - 1);
+            result = new String[kept + 1];
+            System.arraycopy(paths, paths.length - kept, result, 0, kept);
+            result[kept] = strPath;
+        }
+        names.put(name, result);
+        putHash(hash(strPath));
+    }
+
+    private void putHash(int hash) {
+        if (current.count.get() >= capacity) {
+            // the oldest generation is forgotten, its paths fall back to the regular lookup
+            previous = current;
+            current = new BloomFilter(capacity);
+        }
+        current.put(hash);
+    }
+
+    public synchronized void invalidate(String name) {
+        epoch.incrementAndGet();
+        names.remove(name);
+    }
+
+    public synchronized void clear() {
+        epoch.incrementAndGet();
+        names.clear();
+        current = new BloomFilter(capacity);
+        previous = new BloomFilter(capacity);
+    }
+
+    public BoundedCache<String, String[]> getCache() {
+        return names;
+    }
+
+    private static int hash(String strPath) {
+        int hash = strPath.hashCode() * 0x9e3779b9;
+        return hash ^ hash >>> 15;
+    }
+}
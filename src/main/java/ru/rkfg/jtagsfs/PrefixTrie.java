@@ -0,0 +1,82 @@
+package ru.rkfg.jtagsfs;
+
+import java.util.Arrays;
+
+// An immutable character trie looked up by a region of a string, so a path component can be matched without cutting
+// it out. Adding a key copies the nodes on its way and makes a new trie, the readers never lock.
+public class PrefixTrie<V> {
+
+    private static class Node<V> {
+        // sorted
+        final char[] chars;
+        final Node<V>[] children;
+        final V value;
+
+        Node(char[] chars, Node<V>[] children, V value) {
+            this.chars = chars;
+            this.children = children;
+            this.value = value;
+        }
+    }
+
+    private final Node<V> root;
+
+    public PrefixTrie() {
+        this(PrefixTrie.<V> emptyNode());
+    }
+
+    private PrefixTrie(Node<V> root) {
+        this.root = root;
+    }
+
+    // the value of the key equal to the region, null if there's none
+    public V get(String source, int start, int end) {
+        Node<V> node = root;
+        for (int i = start; i < end; i++) {
+            int index = Arrays.binarySearch(node.chars, source.charAt(i));
+            if (index < 0) {
+                return null;
+            }
+            node = node.children[index];
+        }
+        return node.value;
+    }
+
+    public PrefixTrie<V> with(String key, V value) {
+        return new PrefixTrie<V>(with(root, key, 0, value));
+    }
+
+    private Node<V> with(Node<V> node, String key, int depth, V value) {
+        if (depth == key.length()) {
+            return new Node<V>(node.chars, node.children, value);
+        }
+        char c = key.charAt(depth);
+        int index = Arrays.binarySearch(node.chars, c);
+        if (index >= 0) {
+            Node<V>[] children = Arrays.copyOf(node.children, node.children.length);
+            children[index] = with(children[index], key, depth + 1, value);
+            return new Node<V>(node.chars, children, node.value);
+        }
+        index = -index - 1;
+        int length = node.chars.length;
+        char[] chars = new char[length + 1];
+        Node<V>[] children = newNodes(length + 1);
+        System.arraycopy(node.chars, 0, chars, 0, index);
+        System.arraycopy(node.children, 0, children, 0, index);
+        System.arraycopy(node.chars, index, chars, index + 1, length - index);
+        System.arraycopy(node.children, index, children, index + 1, length - index);
+        chars[index] = c;
+        children[index] = with(PrefixTrie.<V> emptyNode(), key, depth + 1, value);
+        return new Node<V>(chars, children, node.value);
+    }
+
+    private static <V> Node<V> emptyNode() {
+        return new Node<V>(new char[0], PrefixTrie.<V> newNodes(0), null);
+    }
+
+    // generic arrays can't be created directly
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <V> Node<V>[] newNodes(int length) {
+        return new Node[length];
+    }
+}
@@ -0,0 +1,246 @@
+package ru.rkfg.jtagsfs;
+
+import static ru.rkfg.jtagsfs.Consts.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Per-handle read-ahead. Reads continuing exactly where the previous one ended are considered sequential, the window
+// of prefetched data grows with every such read up to the limit and is dropped on a random access. The data is read
+// asynchronously in aligned chunks into pooled direct buffers. A write to the file makes the prefetched data stale,
+// that's tracked by a version per file (striped by id).
+public class ReadAhead {
+
+    private static class Chunk {
+        long start;
+        ByteBuffer buffer;
+        // -1 while the chunk is being read
+        int length = -1;
+        long version;
+        boolean discarded;
+    }
+
+    private static final AtomicLongArray versions = new AtomicLongArray(1024);
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final AtomicInteger allocated = new AtomicInteger();
+    private static final ExecutorService executor = Executors.newFixedThreadPool(READAHEAD_THREADS, new ThreadFactory() {
+
+        private AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "read-ahead " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final AtomicLong hitBytes = new AtomicLong();
+    private static final AtomicLong missBytes = new AtomicLong();
+    private static final AtomicLong prefetchedBytes = new AtomicLong();
+    private static final AtomicLong discardedBytes = new AtomicLong();
+
+    private LockableFile file;
+    private LinkedList<Chunk> chunks = new LinkedList<Chunk>();
+    private long lastEnd = -1;
+    private int window;
+    private boolean closed;
+
+    public ReadAhead(LockableFile file) {
+        this.file = file;
+    }
+
+    public static boolean isEnabled() {
+        return READAHEAD_MAX > 0;
+    }
+
+    // the prefetched data of the file becomes stale
+    public static void fileChanged(long fileId) {
+        versions.incrementAndGet(stripe(fileId));
+    }
+
+    private static int stripe(long fileId) {
+        return (int) (fileId & versions.length() - 1);
+    }
+
+    public int read(ByteBuffer buffer, long offset) throws IOException {
+        int result = 0;
+        synchronized (this) {
+            if (offset == lastEnd) {
+                window = window == 0 ? READAHEAD_CHUNK : Math.min(window * 2, READAHEAD_MAX);
+            } else {
+                window = 0;
+                discardAll();
+            }
+            lastEnd = offset + buffer.remaining();
+            while (buffer.hasRemaining()) {
+                Chunk chunk = find(offset);
+                if (chunk == null) {
+                    break;
+                }
+                while (chunk.length < 0 && !chunk.discarded) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (chunk.length < 0 || chunk.discarded || chunk.version != versions.get(stripe(file.getId()))) {
+                    discard(chunk);
+                    break;
+                }
+                int position = (int) (offset - chunk.start);
+                int length = Math.min(buffer.remaining(), chunk.length - position);
+                if (length <= 0) {
+                    break;
+                }
+                ByteBuffer source = chunk.buffer.duplicate();
+                source.position(position).limit(position + length);
+                buffer.put(source);
+                result += length;
+                offset += length;
+            }
+            hitBytes.addAndGet(result);
+            dropBefore(offset);
+            if (window > 0) {
+                prefetch(lastEnd + window);
+            }
+        }
+        if (buffer.hasRemaining()) {
+            int read = file.readContent(buffer, offset);
+            missBytes.addAndGet(read);
+            result += read;
+        }
+        return result;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        discardAll();
+    }
+
+    private Chunk find(long offset) {
+        for (Chunk chunk : chunks) {
+            if (chunk.start <= offset && offset < chunk.start + READAHEAD_CHUNK) {
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+    // schedules the chunks up to the given offset that aren't there yet while the pool has buffers
+    private void prefetch(long end) {
+        long start = lastEnd / READAHEAD_CHUNK * READAHEAD_CHUNK;
+        if (!chunks.isEmpty()) {
+            start = Math.max(start, chunks.getLast().start + READAHEAD_CHUNK);
+        }
+        for (; start < end; start += READAHEAD_CHUNK) {
+            ByteBuffer buffer = acquireBuffer();
+            if (buffer == null) {
+                return;
+            }
+            final Chunk chunk = new Chunk();
+            chunk.start = start;
+            chunk.buffer = buffer;
+            chunks.add(chunk);
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    load(chunk);
+                }
+            });
+        }
+    }
+
+    private void load(Chunk chunk) {
+        long version = versions.get(stripe(file.getId()));
+        ByteBuffer buffer = chunk.buffer;
+        buffer.clear();
+        try {
+            while (buffer.hasRemaining() && file.readContent(buffer, chunk.start + buffer.position()) > 0) {
+                continue;
+            }
+        } catch (IOException e) {
+            // the file was closed or failed, the chunk is discarded below
+            chunk.discarded = true;
+        }
+        synchronized (this) {
+            chunk.length = buffer.position();
+            chunk.version = version;
+            prefetchedBytes.addAndGet(chunk.length);
+            if (chunk.discarded || closed) {
+                discard(chunk);
+            }
+            notifyAll();
+        }
+    }
+
+    private void dropBefore(long offset) {
+        Iterator<Chunk> iterator = chunks.iterator();
+        while (iterator.hasNext()) {
+            Chunk chunk = iterator.next();
+            if (chunk.start + READAHEAD_CHUNK <= offset && chunk.length >= 0) {
+                iterator.remove();
+                releaseBuffer(chunk.buffer);
+            }
+        }
+    }
+
+    private void discard(Chunk chunk) {
+        chunks.remove(chunk);
+        chunk.discarded = true;
+        // a chunk being read is released when the reading is done
+        if (chunk.length >= 0 && chunk.buffer != null) {
+            discardedBytes.addAndGet(chunk.length);
+            releaseBuffer(chunk.buffer);
+            chunk.buffer = null;
+        }
+    }
+
+    private void discardAll() {
+        while (!chunks.isEmpty()) {
+            discard(chunks.getFirst());
+        }
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null && allocated.incrementAndGet() <= READAHEAD_BUFFERS) {
+            buffer = ByteBuffer.allocateDirect(READAHEAD_CHUNK);
+        } else if (buffer == null) {
+            allocated.decrementAndGet();
+        }
+        return buffer;
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        pool.offer(buffer);
+    }
+
+    public static long getHitBytes() {
+        return hitBytes.get();
+    }
+
+    public static long getMissBytes() {
+        return missBytes.get();
+    }
+
+    public static long getPrefetchedBytes() {
+        return prefetchedBytes.get();
+    }
+
+    public static long getDiscardedBytes() {
+        return discardedBytes.get();
+    }
+}
@@ -1,25 +1,22 @@
 package ru.rkfg.jtagsfs;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import net.fusejna.StructStat.StatWrapper;
 import ru.rkfg.jtagsfs.FSHandlerManager.FSHandlerException;
-import ru.rkfg.jtagsfs.VirtualDirectory.VirtualEntryNotFound;
 
 public class RootHandler extends UnsupportedFSHandler {
 
-    List<FSHandler> handlers = new LinkedList<FSHandler>();
-    VirtualDirectory virtualDirectory = new VirtualDirectory();
+    List<FSHandler> handlers = new CopyOnWriteArrayList<FSHandler>();
+    volatile VirtualDirectory virtualDirectory = new VirtualDirectory();
 
-    public RootHandler() {
-        handlers.addAll(Arrays.asList(new ControlHandler(), new TagsHandler()));
-        for (FSHandler handler : handlers) {
-            virtualDirectory.add(new VirtualEntry(handler.getPrefix(), EntryType.DIR, 4096));
-        }
+    // called by the manager when a handler is registered
+    void addHandler(FSHandler handler) {
+        handlers.add(handler);
+        virtualDirectory = virtualDirectory.with(new VirtualEntry(handler.getPrefix(), EntryType.DIR, 4096));
     }
 
     @Override
@@ -34,20 +31,17 @@ public class RootHandler extends UnsupportedFSHandler {
 
     @Override
     public void getattr(Filepath filepath, StatWrapper stat) throws FSHandlerException {
-        try {
-            if (filepath.getPath().length == 0) {
-                stat.mode(VirtualEntry.DIRMODE);
-                stat.size(4096);
+        if (filepath.getPathLength() == 0) {
+            stat.mode(VirtualEntry.DIRMODE);
+            stat.size(4096);
+            return;
+        }
+        if (filepath.getPathLength() == 1) {
+            VirtualEntry entry = virtualDirectory.getEntryByName(filepath.getPathLast());
+            if (entry != null) {
+                entry.setStat(stat);
                 return;
             }
-            if (filepath.getPath().length == 1) {
-                VirtualEntry entry = virtualDirectory.getEntryByName(filepath.getPathLast());
-                if (entry != null) {
-                    entry.setStat(stat);
-                    return;
-                }
-            }
-        } catch (VirtualEntryNotFound e) {
         }
         throw new FSHandlerException("notfound");
     }
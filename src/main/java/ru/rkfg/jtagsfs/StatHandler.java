@@ -1,20 +1,30 @@
 package ru.rkfg.jtagsfs;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import net.fusejna.StructStat.StatWrapper;
+
 import ru.rkfg.jtagsfs.FSHandlerManager.FSHandlerException;
-import ru.rkfg.jtagsfs.VirtualDirectory.VirtualEntryNotFound;
+import ru.rkfg.jtagsfs.TagDictionary.TagInfo;
 
 public class StatHandler extends UnsupportedFSHandler {
 
-    VirtualDirectory virtualDirectory = new VirtualDirectory();
     VirtualEntry tagsEntry = new VirtualEntry("tagscount", EntryType.FILE, 0);
+    VirtualEntry cachesEntry = new VirtualEntry("caches", EntryType.FILE, 0);
+    VirtualEntry readAheadEntry = new VirtualEntry("readahead", EntryType.FILE, 0);
+    VirtualEntry writeBackEntry = new VirtualEntry("writeback", EntryType.FILE, 0);
+    VirtualEntry storageEntry = new VirtualEntry("storage", EntryType.FILE, 0);
     VirtualEntry readmeEntry = new VirtualEntry("readme.txt", EntryType.FILE, 10);
-
-    public StatHandler() {
-        virtualDirectory.add(tagsEntry, readmeEntry);
-    }
+    VirtualDirectory virtualDirectory = new VirtualDirectory(tagsEntry, cachesEntry, readAheadEntry, writeBackEntry,
+            storageEntry, readmeEntry);
+    private Charset charset = Charset.forName("utf-8");
 
     @Override
     public String getPrefix() {
@@ -28,14 +38,124 @@ public class StatHandler extends UnsupportedFSHandler {
 
     @Override
     public void getattr(Filepath filepath, StatWrapper stat) throws FSHandlerException {
-        try {
-            VirtualEntry entry = virtualDirectory.getEntryByName(filepath.getPathLast());
-            if (entry != null) {
-                entry.setStat(stat);
-            }
-        } catch (VirtualEntryNotFound e) {
+        VirtualEntry entry = virtualDirectory.getEntryByName(filepath.getPathLast());
+        if (entry == null) {
+            throw new FSHandlerException("notfound");
+        }
+        entry.setStat(stat);
+        byte[] content = getContent(entry);
+        if (content != null) {
+            stat.size(content.length);
+        }
+    }
+
+    @Override
+    public int read(Filepath filepath, ByteBuffer buffer, long size, long offset) throws FSHandlerException {
+        VirtualEntry entry = virtualDirectory.getEntryByName(filepath.getPathLast());
+        if (entry == null) {
             throw new FSHandlerException("notfound");
         }
+        byte[] content = getContent(entry);
+        if (content == null) {
+            throw new FSHandlerException("notsupp");
+        }
+        if (offset >= content.length) {
+            return 0;
+        }
+        int length = (int) Math.min(size, content.length - offset);
+        buffer.put(content, (int) offset, length);
+        return length;
+    }
+
+    private byte[] getContent(VirtualEntry entry) {
+        if (entry == tagsEntry) {
+            return getTagsCount();
+        }
+        if (entry == cachesEntry) {
+            return getCachesStats();
+        }
+        if (entry == readAheadEntry) {
+            return getReadAheadStats();
+        }
+        if (entry == writeBackEntry) {
+            return getWriteBackStats();
+        }
+        if (entry == storageEntry) {
+            return getStorageStats();
+        }
+        return null;
+    }
+
+    // one line per cache: name, hits, misses, evictions, expirations, entries and estimated bytes
+    private byte[] getCachesStats() {
+        StringBuilder sb = new StringBuilder("cache\thits\tmisses\tevictions\texpirations\tentries\tbytes\n");
+        for (BoundedCache<?, ?> cache : CacheManager.INSTANCE.getCaches()) {
+            sb.append(cache.getName()).append('\t').append(cache.getHits()).append('\t').append(cache.getMisses()).append('\t')
+                    .append(cache.getEvictions()).append('\t').append(cache.getExpirations()).append('\t').append(cache.size())
+                    .append('\t').append(cache.weight()).append('\n');
+        }
+        BoundedCache.Budget budget = CacheManager.INSTANCE.getBudget();
+        sb.append("total bytes ").append(budget.getUsed()).append(" of ").append(budget.getMax()).append('\n');
+        return sb.toString().getBytes(charset);
+    }
+
+    // bytes served from the prefetched data and read directly, the hit rate is in percent
+    private byte[] getReadAheadStats() {
+        long hits = ReadAhead.getHitBytes();
+        long misses = ReadAhead.getMissBytes();
+        StringBuilder sb = new StringBuilder();
+        sb.append("hit bytes\t").append(hits).append('\n');
+        sb.append("miss bytes\t").append(misses).append('\n');
+        sb.append("prefetched bytes\t").append(ReadAhead.getPrefetchedBytes()).append('\n');
+        sb.append("discarded bytes\t").append(ReadAhead.getDiscardedBytes()).append('\n');
+        sb.append("hit rate\t").append(hits + misses == 0 ? 0 : hits * 100 / (hits + misses)).append('\n');
+        return sb.toString().getBytes(charset);
+    }
+
+    // bytes held in the buffers now, writes buffered and done directly, extents and bytes written out of the buffers
+    private byte[] getWriteBackStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("buffered bytes\t").append(WriteBuffer.getUsed()).append('\n');
+        sb.append("buffered writes\t").append(WriteBuffer.getBufferedWrites()).append('\n');
+        sb.append("direct writes\t").append(WriteBuffer.getDirectWrites()).append('\n');
+        sb.append("flushed extents\t").append(WriteBuffer.getFlushedExtents()).append('\n');
+        sb.append("flushed bytes\t").append(WriteBuffer.getFlushedBytes()).append('\n');
+        return sb.toString().getBytes(charset);
+    }
+
+    // the storage layout and the progress of the migration if there's one
+    private byte[] getStorageStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("layout\t").append(Storage.INSTANCE.getLayout()).append('\n');
+        StorageLayout target = Storage.INSTANCE.getTarget();
+        if (target != null) {
+            sb.append("migrating to\t").append(target).append('\n');
+            sb.append("migrated up to id\t").append(Storage.INSTANCE.getCheckpoint()).append('\n');
+        }
+        return sb.toString().getBytes(charset);
+    }
+
+    // one "tag<TAB>files count" line per tag, the biggest tags go first
+    private byte[] getTagsCount() {
+        Map<Long, Integer> counts = TagIndex.INSTANCE.getTagCounts();
+        List<Object[]> tags = new ArrayList<Object[]>();
+        for (TagInfo tag : TagDictionary.INSTANCE.getAll()) {
+            Integer count = counts.get(tag.getId());
+            tags.add(new Object[] { count == null ? 0 : count, tag.getName() });
+        }
+        Collections.sort(tags, new Comparator<Object[]>() {
+
+            @Override
+            public int compare(Object[] o1, Object[] o2) {
+                int result = ((Integer) o2[0]).compareTo((Integer) o1[0]);
+                return result != 0 ? result : ((String) o1[1]).compareTo((String) o2[1]);
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        for (Object[] tag : tags) {
+            sb.append(tag[1]).append('\t').append(tag[0]).append('\n');
+        }
+        return sb.toString().getBytes(charset);
     }
 
     @Override
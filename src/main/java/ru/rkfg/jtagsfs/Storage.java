@@ -0,0 +1,292 @@
+package ru.rkfg.jtagsfs;
+
+import static ru.rkfg.jtagsfs.Consts.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.hibernate.Session;
+
+// Data files of the records. The store keeps its layout in the layout file. When the configured layout differs, the
+// files are moved to it in the background in the id order while the filesystem is in use. The last moved id is saved
+// to the migration file after every batch, so an interrupted migration continues from there on the next mount.
+// Meanwhile the files up to the checkpoint are in the new layout and the rest are looked up in both. A file is only
+// created, moved or deleted under the lock of its id so the migration can't move it away between the lookup and the
+// use, the files that are open already stay readable and writable after moving. The migration is throttled to the
+// configured number of files per second to leave the disk to the users.
+public enum Storage {
+    INSTANCE;
+
+    private static final String LAYOUTFILE = ".layout";
+    private static final String MIGRATIONFILE = ".migration";
+
+    private File root = new File(STORAGE);
+    private Charset charset = Charset.forName("utf-8");
+    private Object[] locks = new Object[LOCKSTRIPES];
+    private StorageLayout configured;
+    private volatile StorageLayout layout = StorageLayout.LEGACY;
+    // the layout being migrated to, null if there's no migration
+    private volatile StorageLayout target;
+    // the files with ids up to this one are in the target layout already
+    private volatile long checkpoint;
+
+    private Storage() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public void init() throws IOException {
+        root.mkdirs();
+        configured = StorageLayout.parse(STORAGE_LAYOUT);
+        String saved = readFile(LAYOUTFILE);
+        if (saved != null) {
+            layout = StorageLayout.parse(saved);
+        } else {
+            String[] files = root.list();
+            // a new store starts in the configured layout, an old one has its files in the legacy layout
+            layout = files == null || files.length == 0 ? configured : StorageLayout.LEGACY;
+            writeFile(LAYOUTFILE, layout.getDescriptor());
+        }
+        String migration = readFile(MIGRATIONFILE);
+        if (migration != null) {
+            String[] parts = migration.split("\n");
+            target = StorageLayout.parse(parts[0]);
+            checkpoint = Long.parseLong(parts[1].trim());
+        } else if (!configured.equals(layout)) {
+            startMigration();
+        }
+        if (target != null) {
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    migrate();
+                }
+            }, "storage migration");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void startMigration() throws IOException {
+        checkpoint = 0;
+        writeFile(MIGRATIONFILE, configured.getDescriptor() + "\n" + checkpoint);
+        target = configured;
+    }
+
+    private Object getLock(long id) {
+        return locks[(int) (id & 0x7fffffff) % locks.length];
+    }
+
+    public File getFile(long id, String name) {
+        StorageLayout target = this.target;
+        if (target == null) {
+            return layout.getFile(root, id, name);
+        }
+        if (id <= checkpoint) {
+            return target.getFile(root, id, name);
+        }
+        synchronized (getLock(id)) {
+            File file = layout.getFile(root, id, name);
+            return file.exists() ? file : target.getFile(root, id, name);
+        }
+    }
+
+    // opens the data file for reading and writing, it's created if it doesn't exist
+    public RandomAccessFile open(long id, String name) throws IOException {
+        synchronized (getLock(id)) {
+            File file = getFile(id, name);
+            file.getParentFile().mkdirs();
+            try {
+                return new RandomAccessFile(file, "rw");
+            } catch (FileNotFoundException e) {
+                // the directory may have been removed as empty after a migration right after it was made
+                file.getParentFile().mkdirs();
+                return new RandomAccessFile(file, "rw");
+            }
+        }
+    }
+
+    public boolean delete(long id, String name) {
+        synchronized (getLock(id)) {
+            return getFile(id, name).delete();
+        }
+    }
+
+    // moves the file if its location depends on the name, otherwise renaming a record doesn't touch the data
+    public void rename(long id, String oldName, String newName) {
+        synchronized (getLock(id)) {
+            File from = getFile(id, oldName);
+            StorageLayout target = this.target;
+            File to = (target != null ? target : layout).getFile(root, id, newName);
+            if (!from.equals(to) && from.exists()) {
+                to.getParentFile().mkdirs();
+                if (!from.renameTo(to)) {
+                    System.err.println("Can't move " + from + " to " + to);
+                }
+            }
+        }
+    }
+
+    public StorageLayout getLayout() {
+        return layout;
+    }
+
+    public StorageLayout getTarget() {
+        return target;
+    }
+
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    private void migrate() {
+        try {
+            do {
+                System.err.println("Migrating the storage from " + layout + " to " + target + ", starting after id "
+                        + checkpoint);
+                if (!migrateFiles()) {
+                    return;
+                }
+                writeFile(LAYOUTFILE, target.getDescriptor());
+                // the target becomes the layout before the migration is over so getFile always finds the file
+                layout = target;
+                target = null;
+                new File(root, MIGRATIONFILE).delete();
+                removeEmptyDirs(root);
+                System.err.println("Storage migration to " + layout + " is done");
+                // an interrupted migration to another layout was finished, now to the configured one
+                if (!configured.equals(layout)) {
+                    startMigration();
+                }
+            } while (target != null);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // moves the files past the checkpoint, false if a file couldn't be moved
+    private boolean migrateFiles() throws IOException {
+        long started = System.nanoTime();
+        long moved = 0;
+        while (true) {
+            List<Object[]> batch = HibernateUtil.read(new HibernateCallback<List<Object[]>>() {
+
+                @SuppressWarnings("unchecked")
+                @Override
+                public List<Object[]> run(Session session) {
+                    return session.createQuery("select f.id, f.name from FileRecord f where f.id > :id order by f.id")
+                            .setLong("id", checkpoint).setMaxResults(FETCHSIZE).list();
+                }
+            });
+            if (batch.isEmpty()) {
+                return true;
+            }
+            long last = checkpoint;
+            for (Object[] record : batch) {
+                long id = (Long) record[0];
+                Boolean result = move(id, (String) record[1]);
+                if (result == null) {
+                    // the files past the checkpoint are looked up in both layouts, it's safe to stop here
+                    return false;
+                }
+                last = id;
+                if (result && STORAGE_RATE > 0) {
+                    moved++;
+                    long ahead = moved * 1000000000L / STORAGE_RATE - (System.nanoTime() - started);
+                    if (ahead > 0) {
+                        try {
+                            Thread.sleep(ahead / 1000000, (int) (ahead % 1000000));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        }
+                    }
+                }
+            }
+            writeFile(MIGRATIONFILE, target.getDescriptor() + "\n" + last);
+            checkpoint = last;
+        }
+    }
+
+    // true if the file was moved, false if there was nothing to move and null if moving failed
+    private Boolean move(long id, String name) {
+        synchronized (getLock(id)) {
+            File from = layout.getFile(root, id, name);
+            File to = target.getFile(root, id, name);
+            if (from.equals(to) || !from.exists()) {
+                // moved already or the record has no data yet
+                return false;
+            }
+            to.getParentFile().mkdirs();
+            if (!from.renameTo(to)) {
+                System.err.println("Can't move " + from + " to " + to + ", the migration is stopped");
+                return null;
+            }
+            return true;
+        }
+    }
+
+    // the directories of the old layout are left empty after the migration
+    private void removeEmptyDirs(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                removeEmptyDirs(file);
+                // fails unless the directory is empty
+                file.delete();
+            }
+        }
+    }
+
+    private String readFile(String name) throws IOException {
+        File file = new File(root, name);
+        if (!file.exists()) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), charset));
+        try {
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sb.append(line).append('\n');
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    // the content is replaced atomically so a crash leaves either the old or the new one
+    private void writeFile(String name, String content) throws IOException {
+        File temp = new File(root, name + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            Writer writer = new OutputStreamWriter(stream, charset);
+            writer.write(content);
+            writer.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!temp.renameTo(new File(root, name))) {
+            throw new IOException("Can't replace " + name + " in the storage");
+        }
+    }
+}
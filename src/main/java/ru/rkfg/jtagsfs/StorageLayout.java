@@ -0,0 +1,121 @@
+package ru.rkfg.jtagsfs;
+
+import static ru.rkfg.jtagsfs.Consts.*;
+
+import java.io.File;
+
+// Where the data file of a record is kept in the storage directory. The layout of a store is saved in it by its
+// descriptor, stores made before the layouts were introduced use the legacy one.
+public abstract class StorageLayout {
+
+    // <id % 1000>/<id>|_|<name>, renaming a record moves its file
+    public static final StorageLayout LEGACY = new StorageLayout() {
+
+        @Override
+        public File getFile(File root, long id, String name) {
+            return new File(root, id % 1000 + File.separator + id + IDSEPARATOR + name);
+        }
+
+        @Override
+        public String getDescriptor() {
+            return "legacy";
+        }
+    };
+
+    // <id % 1000>/<id>, the file stays where it is for the whole life of the record
+    public static final StorageLayout ID = new StorageLayout() {
+
+        @Override
+        public File getFile(File root, long id, String name) {
+            return new File(root, id % 1000 + File.separator + id);
+        }
+
+        @Override
+        public String getDescriptor() {
+            return "id";
+        }
+    };
+
+    // <level 1>/<level 2>/.../<id>, the directories are picked by a hash of the id so the files are spread evenly among
+    // them whatever the ids are
+    public static class Hashed extends StorageLayout {
+
+        private int levels;
+        private int fanout;
+        // hex digits of a directory name
+        private int width;
+
+        public Hashed(int levels, int fanout) {
+            if (levels < 1 || fanout < 2) {
+                throw new IllegalArgumentException("Invalid sharding " + levels + "x" + fanout);
+            }
+            this.levels = levels;
+            this.fanout = fanout;
+            width = Integer.toHexString(fanout - 1).length();
+        }
+
+        @Override
+        public File getFile(File root, long id, String name) {
+            // the finalizer of MurmurHash3
+            long hash = (id ^ id >>> 33) * 0xff51afd7ed558ccdL;
+            hash = (hash ^ hash >>> 33) * 0xc4ceb9fe1a85ec53L;
+            hash = (hash ^ hash >>> 33) & Long.MAX_VALUE;
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < levels; i++) {
+                String shard = Long.toHexString(hash % fanout);
+                for (int j = shard.length(); j < width; j++) {
+                    sb.append('0');
+                }
+                sb.append(shard).append(File.separatorChar);
+                hash /= fanout;
+            }
+            return new File(root, sb.append(id).toString());
+        }
+
+        @Override
+        public String getDescriptor() {
+            return "hashed:" + levels + "x" + fanout;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Hashed && ((Hashed) obj).levels == levels && ((Hashed) obj).fanout == fanout;
+        }
+
+        @Override
+        public int hashCode() {
+            return levels * 31 + fanout;
+        }
+    }
+
+    public abstract File getFile(File root, long id, String name);
+
+    public abstract String getDescriptor();
+
+    public static StorageLayout parse(String descriptor) {
+        descriptor = descriptor.trim();
+        if (descriptor.equals(LEGACY.getDescriptor())) {
+            return LEGACY;
+        }
+        if (descriptor.equals(ID.getDescriptor())) {
+            return ID;
+        }
+        if (descriptor.startsWith("hashed:")) {
+            // hashed:<levels>x<directories per level>
+            String[] parts = descriptor.substring(7).split("x");
+            try {
+                if (parts.length == 2) {
+                    return new Hashed(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+        }
+        throw new IllegalArgumentException("Unknown storage layout " + descriptor);
+    }
+
+    @Override
+    public String toString() {
+        return getDescriptor();
+    }
+}
@@ -0,0 +1,164 @@
+package ru.rkfg.jtagsfs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.Session;
+
+// Process-wide copy of the tags table with the hierarchy. Readers use an immutable snapshot without any locking, writers
+// replace the snapshot after their transaction is committed.
+public enum TagDictionary {
+    INSTANCE;
+
+    public static class TagInfo {
+        private final Long id;
+        private final String name;
+        private final Long parentId;
+
+        public TagInfo(Long id, String name, Long parentId) {
+            this.id = id;
+            this.name = name.intern();
+            this.parentId = parentId;
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Long getParentId() {
+            return parentId;
+        }
+    }
+
+    private static class Snapshot {
+        Map<String, TagInfo> byName = new HashMap<String, TagInfo>();
+        Map<Long, TagInfo> byId = new HashMap<Long, TagInfo>();
+        Map<Long, List<String>> children = new HashMap<Long, List<String>>();
+        List<String> roots = new ArrayList<String>();
+
+        Snapshot(Collection<TagInfo> tags) {
+            for (TagInfo tag : tags) {
+                byName.put(tag.getName(), tag);
+                byId.put(tag.getId(), tag);
+                if (tag.getParentId() == null) {
+                    roots.add(tag.getName());
+                } else {
+                    List<String> siblings = children.get(tag.getParentId());
+                    if (siblings == null) {
+                        siblings = new ArrayList<String>();
+                        children.put(tag.getParentId(), siblings);
+                    }
+                    siblings.add(tag.getName());
+                }
+            }
+        }
+
+        List<String> getChildren(String name) {
+            TagInfo tag = byName.get(name);
+            List<String> result = tag == null ? null : children.get(tag.getId());
+            return result == null ? Collections.<String> emptyList() : result;
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.<TagInfo> emptyList());
+
+    public void load() {
+        List<TagInfo> tags = HibernateUtil.exec(new HibernateCallback<List<TagInfo>>() {
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public List<TagInfo> run(Session session) {
+                List<TagInfo> result = new ArrayList<TagInfo>();
+                for (Object[] row : (List<Object[]>) session.createQuery("select t.id, t.name, p.id from Tag t left join t.parent p")
+                        .list()) {
+                    result.add(new TagInfo((Long) row[0], (String) row[1], (Long) row[2]));
+                }
+                return result;
+            }
+        });
+        synchronized (this) {
+            snapshot = new Snapshot(tags);
+        }
+    }
+
+    // adds a new tag or updates the name/parent of an existing one
+    public synchronized void put(TagInfo tag) {
+        Map<Long, TagInfo> tags = new HashMap<Long, TagInfo>(snapshot.byId);
+        tags.put(tag.getId(), tag);
+        snapshot = new Snapshot(tags.values());
+    }
+
+    public synchronized void remove(Long id) {
+        Map<Long, TagInfo> tags = new HashMap<Long, TagInfo>(snapshot.byId);
+        tags.remove(id);
+        snapshot = new Snapshot(tags.values());
+    }
+
+    public TagInfo get(String name) {
+        return snapshot.byName.get(name);
+    }
+
+    public TagInfo get(Long id) {
+        return snapshot.byId.get(id);
+    }
+
+    public Long getId(String name) {
+        TagInfo tag = snapshot.byName.get(name);
+        return tag == null ? null : tag.getId();
+    }
+
+    public Map<String, Long> getIds(String[] names) {
+        Snapshot current = snapshot;
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (String name : names) {
+            TagInfo tag = current.byName.get(name);
+            if (tag != null) {
+                result.put(name, tag.getId());
+            }
+        }
+        return result;
+    }
+
+    public String getParentName(String name) {
+        Snapshot current = snapshot;
+        TagInfo tag = current.byName.get(name);
+        TagInfo parent = tag == null || tag.getParentId() == null ? null : current.byId.get(tag.getParentId());
+        return parent == null ? null : parent.getName();
+    }
+
+    public Collection<TagInfo> getAll() {
+        return snapshot.byId.values();
+    }
+
+    // Strict mode returns the children of the last path tag (or the root tags for an empty path), non-strict mode returns
+    // the root tags and the children of all path tags. Path tags themselves are never returned.
+    public Set<String> getTags(String[] path, boolean strict) {
+        Snapshot current = snapshot;
+        Set<String> result = new HashSet<String>();
+        if (strict && path.length > 0) {
+            result.addAll(current.getChildren(path[path.length - 1]));
+        } else {
+            result.addAll(current.roots);
+            if (!strict) {
+                for (String name : path) {
+                    result.addAll(current.getChildren(name));
+                }
+            }
+        }
+        for (String name : path) {
+            result.remove(name);
+        }
+        return result;
+    }
+
+}
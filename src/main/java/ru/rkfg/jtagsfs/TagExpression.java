@@ -0,0 +1,123 @@
+package ru.rkfg.jtagsfs;
+
+import static ru.rkfg.jtagsfs.Consts.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Immutable parsed form of a tags path: a disjunction ('+') of groups, every group is a conjunction of included and
+// excluded ('_') tags. Tags and groups are sorted so equivalent paths produce the same key.
+public class TagExpression {
+
+    public static class Group implements Comparable<Group> {
+        private final String[] included;
+        private final String[] excluded;
+        private final String key;
+
+        private Group(Set<String> included, Set<String> excluded) {
+            this.included = included.toArray(new String[included.size()]);
+            this.excluded = excluded.toArray(new String[excluded.size()]);
+            StringBuilder sb = new StringBuilder();
+            for (String tag : this.included) {
+                append(sb, tag);
+            }
+            for (String tag : this.excluded) {
+                append(append(sb, EXCLUDETAGS), tag);
+            }
+            key = sb.toString();
+        }
+
+        public String[] getIncluded() {
+            return included;
+        }
+
+        public String[] getExcluded() {
+            return excluded;
+        }
+
+        public boolean isEmpty() {
+            return included.length == 0 && excluded.length == 0;
+        }
+
+        @Override
+        public int compareTo(Group o) {
+            return key.compareTo(o.key);
+        }
+    }
+
+    private final Group[] groups;
+    private final String[] tagNames;
+    private final String key;
+
+    private TagExpression(List<Group> groups) {
+        Collections.sort(groups);
+        this.groups = groups.toArray(new Group[groups.size()]);
+        Set<String> names = new LinkedHashSet<String>();
+        StringBuilder sb = new StringBuilder();
+        for (Group group : this.groups) {
+            if (group != this.groups[0]) {
+                sb.append(File.separator).append(CONCATTAGS).append(File.separator);
+            }
+            sb.append(group.key);
+            names.addAll(Arrays.asList(group.included));
+            names.addAll(Arrays.asList(group.excluded));
+        }
+        tagNames = names.toArray(new String[names.size()]);
+        key = sb.toString();
+    }
+
+    public static TagExpression parse(String[] path) {
+        List<Group> groups = new ArrayList<Group>();
+        Set<String> included = new TreeSet<String>();
+        Set<String> excluded = new TreeSet<String>();
+        boolean negate = false;
+        for (String tag : path) {
+            if (tag.equals(ENDOFTAGS) || tag.equals(TAGGEDCONTENT)) {
+                break;
+            }
+            if (tag.equals(CONCATTAGS)) {
+                groups.add(new Group(included, excluded));
+                included.clear();
+                excluded.clear();
+            } else if (tag.equals(EXCLUDETAGS)) {
+                negate = true;
+            } else {
+                (negate ? excluded : included).add(tag);
+                negate = false;
+            }
+        }
+        groups.add(new Group(included, excluded));
+        return new TagExpression(groups);
+    }
+
+    public Group[] getGroups() {
+        return groups;
+    }
+
+    public String[] getTagNames() {
+        return tagNames;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    private static StringBuilder append(StringBuilder sb, String component) {
+        if (sb.length() > 0) {
+            sb.append(File.separator);
+        }
+        return sb.append(component);
+    }
+
+    @Override
+    public String toString() {
+        return "TagExpression [" + key + "]";
+    }
+
+}
@@ -0,0 +1,177 @@
+package ru.rkfg.jtagsfs;
+
+import static ru.rkfg.jtagsfs.Consts.*;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+import ru.rkfg.jtagsfs.TagExpression.Group;
+
+public enum TagIndex {
+    INSTANCE;
+
+    private static final Comparator<IdBitmap> BY_CARDINALITY = new Comparator<IdBitmap>() {
+
+        @Override
+        public int compare(IdBitmap o1, IdBitmap o2) {
+            return o1.cardinality() < o2.cardinality() ? -1 : o1.cardinality() == o2.cardinality() ? 0 : 1;
+        }
+    };
+
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Map<Long, IdBitmap> tagFiles = new HashMap<Long, IdBitmap>();
+    private IdBitmap allFiles = new IdBitmap();
+
+    public void build() {
+        HibernateUtil.exec(new HibernateCallback<Void>() {
+
+            @Override
+            public Void run(Session session) {
+                Map<Long, IdBitmap> newTagFiles = new HashMap<Long, IdBitmap>();
+                IdBitmap newAllFiles = new IdBitmap();
+                ScrollableResults files = session.createQuery("select f.id from FileRecord f").setFetchSize(FETCHSIZE)
+                        .scroll(ScrollMode.FORWARD_ONLY);
+                while (files.next()) {
+                    newAllFiles.add(files.getLong(0));
+                }
+                files.close();
+                ScrollableResults pairs = session.createQuery("select t.id, f.id from FileRecord f join f.tags t")
+                        .setFetchSize(FETCHSIZE).scroll(ScrollMode.FORWARD_ONLY);
+                while (pairs.next()) {
+                    Long tagId = pairs.getLong(0);
+                    IdBitmap bitmap = newTagFiles.get(tagId);
+                    if (bitmap == null) {
+                        bitmap = new IdBitmap();
+                        newTagFiles.put(tagId, bitmap);
+                    }
+                    bitmap.add(pairs.getLong(1));
+                }
+                pairs.close();
+                lock.writeLock().lock();
+                try {
+                    tagFiles = newTagFiles;
+                    allFiles = newAllFiles;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                return null;
+            }
+        });
+    }
+
+    public void setFileTags(Long fileId, Collection<Long> tagIds) {
+        lock.writeLock().lock();
+        try {
+            allFiles.add(fileId);
+            for (Map.Entry<Long, IdBitmap> entry : tagFiles.entrySet()) {
+                if (!tagIds.contains(entry.getKey())) {
+                    entry.getValue().remove(fileId);
+                }
+            }
+            for (Long tagId : tagIds) {
+                IdBitmap bitmap = tagFiles.get(tagId);
+                if (bitmap == null) {
+                    bitmap = new IdBitmap();
+                    tagFiles.put(tagId, bitmap);
+                }
+                bitmap.add(fileId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeFile(Long fileId) {
+        lock.writeLock().lock();
+        try {
+            allFiles.remove(fileId);
+            for (IdBitmap bitmap : tagFiles.values()) {
+                bitmap.remove(fileId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeTag(Long tagId) {
+        lock.writeLock().lock();
+        try {
+            tagFiles.remove(tagId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Groups are ORed, tags in a group are ANDed and excluded tags are subtracted. Unknown tags match nothing. Included tags
+    // are intersected starting from the smallest one and the group evaluation stops as soon as it becomes empty.
+    public IdBitmap select(TagExpression expression, Map<String, Long> tagIds) {
+        lock.readLock().lock();
+        try {
+            IdBitmap result = null;
+            for (Group group : expression.getGroups()) {
+                IdBitmap groupBitmap = selectIncluded(group, tagIds);
+                for (String tag : group.getExcluded()) {
+                    if (groupBitmap.isEmpty()) {
+                        break;
+                    }
+                    groupBitmap = groupBitmap.andNot(getTagBitmap(tagIds.get(tag)));
+                }
+                result = result == null ? groupBitmap : result.or(groupBitmap);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private IdBitmap selectIncluded(Group group, Map<String, Long> tagIds) {
+        String[] included = group.getIncluded();
+        if (included.length == 0) {
+            // a group without included tags starts with all files, just like "1=1" in the query
+            return allFiles.copy();
+        }
+        IdBitmap[] bitmaps = new IdBitmap[included.length];
+        for (int i = 0; i < included.length; i++) {
+            bitmaps[i] = getTagBitmap(tagIds.get(included[i]));
+            if (bitmaps[i].isEmpty()) {
+                return new IdBitmap();
+            }
+        }
+        Arrays.sort(bitmaps, BY_CARDINALITY);
+        if (bitmaps.length == 1) {
+            return bitmaps[0].copy();
+        }
+        IdBitmap result = bitmaps[0].and(bitmaps[1]);
+        for (int i = 2; i < bitmaps.length && !result.isEmpty(); i++) {
+            result = result.and(bitmaps[i]);
+        }
+        return result;
+    }
+
+    public Map<Long, Integer> getTagCounts() {
+        lock.readLock().lock();
+        try {
+            Map<Long, Integer> result = new HashMap<Long, Integer>();
+            for (Map.Entry<Long, IdBitmap> entry : tagFiles.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().cardinality());
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private IdBitmap getTagBitmap(Long tagId) {
+        IdBitmap result = tagId == null ? null : tagFiles.get(tagId);
+        return result == null ? new IdBitmap() : result;
+    }
+}
@@ -0,0 +1,70 @@
+package ru.rkfg.jtagsfs;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+
+import ru.rkfg.jtagsfs.TagExpression.Group;
+
+// Compiled tags expression with its parameterized lookup statements, the HQL strings are built only once per expression
+// and every call just binds the tag names.
+public class TagQueryPlan {
+
+    private static final String TAGCHECK = " in (select t.name from Tag t where t in elements(f.tags))";
+
+    private final TagExpression expression;
+    private final String lookupQuery;
+    private final String lookupByIdQuery;
+    private final String[] paramNames;
+
+    public TagQueryPlan(TagExpression expression) {
+        this.expression = expression;
+        String[] tagNames = expression.getTagNames();
+        paramNames = new String[tagNames.length];
+        for (int i = 0; i < tagNames.length; i++) {
+            paramNames[i] = "t" + i;
+        }
+        StringBuilder where = new StringBuilder();
+        for (Group group : expression.getGroups()) {
+            if (where.length() > 0) {
+                where.append(" or ");
+            }
+            where.append("(1=1");
+            for (String tag : group.getIncluded()) {
+                where.append(" and :").append(paramNameOf(tag)).append(TAGCHECK);
+            }
+            for (String tag : group.getExcluded()) {
+                where.append(" and :").append(paramNameOf(tag)).append(" not").append(TAGCHECK);
+            }
+            where.append(")");
+        }
+        lookupQuery = "from FileRecord f left join fetch f.tags where f.name = :name and (" + where + ")";
+        lookupByIdQuery = lookupQuery + " and f.id = :id";
+    }
+
+    private String paramNameOf(String tag) {
+        String[] tagNames = expression.getTagNames();
+        for (int i = 0; i < tagNames.length; i++) {
+            if (tagNames[i].equals(tag)) {
+                return paramNames[i];
+            }
+        }
+        throw new IllegalArgumentException("Tag " + tag + " isn't a part of " + expression);
+    }
+
+    public TagExpression getExpression() {
+        return expression;
+    }
+
+    public Query createLookup(Session session, String name, Long id) {
+        Query query = session.createQuery(id == null ? lookupQuery : lookupByIdQuery).setString("name", name);
+        if (id != null) {
+            query.setLong("id", id);
+        }
+        String[] tagNames = expression.getTagNames();
+        for (int i = 0; i < tagNames.length; i++) {
+            query.setString(paramNames[i], tagNames[i]);
+        }
+        return query;
+    }
+
+}
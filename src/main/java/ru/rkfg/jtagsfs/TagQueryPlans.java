@@ -0,0 +1,43 @@
+package ru.rkfg.jtagsfs;
+
+import static ru.rkfg.jtagsfs.Consts.*;
+
+// Compiled plans by the path and by the normalized expression. Both are segmented caches so the lookups of different
+// directories don't wait for each other; two threads missing the same plan may both compile it, the last one stays.
+public enum TagQueryPlans {
+    INSTANCE;
+
+    // raw path -> plan, to skip parsing on repeated lookups of the same directory
+    private BoundedCache<String, TagQueryPlan> pathPlans = newPlanCache("path plans");
+    // normalized expression -> plan, so permutations of the same tags share one plan
+    private BoundedCache<String, TagQueryPlan> expressionPlans = newPlanCache("expression plans");
+
+    // bounded by the count only, the plans never expire
+    private static BoundedCache<String, TagQueryPlan> newPlanCache(String name) {
+        return new BoundedCache<String, TagQueryPlan>(name, PLANCACHESIZE, Long.MAX_VALUE, Long.MAX_VALUE,
+                new BoundedCache.Weigher<String, TagQueryPlan>() {
+
+                    @Override
+                    public int weigh(String key, TagQueryPlan value) {
+                        return 1;
+                    }
+                });
+    }
+
+    public TagQueryPlan get(Filepath filepath) {
+        String pathKey = filepath.getPathKey();
+        TagQueryPlan plan = pathPlans.get(pathKey);
+        if (plan != null) {
+            return plan;
+        }
+        TagExpression expression = TagExpression.parse(filepath.getPath());
+        plan = expressionPlans.get(expression.getKey());
+        if (plan == null) {
+            plan = new TagQueryPlan(expression);
+            expressionPlans.put(expression.getKey(), plan);
+        }
+        pathPlans.put(pathKey, plan);
+        return plan;
+    }
+
+}
@@ -4,25 +4,33 @@ import static ru.rkfg.jtagsfs.Consts.*;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
+import net.fusejna.DirectoryFiller;
 import net.fusejna.StructFuseFileInfo.FileInfoWrapper;
 import net.fusejna.StructStat.StatWrapper;
 
 import org.hibernate.NonUniqueResultException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 
 import ru.rkfg.jtagsfs.FSHandlerManager.FSHandlerException;
 import ru.rkfg.jtagsfs.FSHandlerManager.FSHandlerFileException;
+import ru.rkfg.jtagsfs.IdBitmap.IdIterator;
 import ru.rkfg.jtagsfs.domain.FileRecord;
 import ru.rkfg.jtagsfs.domain.Tag;
 
@@ -33,41 +41,26 @@ public class TagsHandler extends AbstractTagsHandler {
     public TagsHandler() {
     }
 
-    // this permanent session is only used for tags enumeration purposes, it won't be closed/reopened for performance reasons
-    private Session getattrSession = HibernateUtil.getSession();
     private Charset charset = Charset.forName("utf-8");
 
-    private File openFileByNameId(String name, Long id) {
-        return new File(STORAGE + File.separator + id % 1000 + File.separator + id + IDSEPARATOR + name);
+    private File openFileByFilepath(final Filepath filepath) {
+        return resolveFile(filepath).getFile();
     }
 
-    private File openFileByFilepath(Filepath filepath) {
-        String strPath = filepath.asStringPath();
-        // make the entire operation atomic
-        synchronized (cacheManager) {
-            CachedFile cachedFile = cacheManager.getCachedFile(strPath);
-            if (cacheManager.isNonExistentFile(strPath)) {
-                throw new FSHandlerFileException("cached nonexistent");
-            }
-            if (cachedFile == null) {
-                FileRecord fileRecord = null;
-                try {
-                    fileRecord = getFileRecordByFilepath(filepath);
-                } catch (FSHandlerFileException e) {
-                    cacheManager.putNonExistentFile(strPath);
-                    throw e;
-                }
-                cachedFile = new CachedFile(openFileByNameId(fileRecord.getName(), fileRecord.getId()));
-                cacheManager.putCachedFile(strPath, cachedFile);
-            } else {
-                cachedFile.setCreated(System.currentTimeMillis());
+    private CachedFile resolveFile(final Filepath filepath) {
+        return cacheManager.getCachedFile(filepath, new Callable<CachedFile>() {
+
+            @Override
+            public CachedFile call() {
+                FileRecord fileRecord = getFileRecordByFilepath(filepath);
+                return new CachedFile(fileRecord.getName(), fileRecord.getId(), fileRecord.getSize(), fileRecord.getMtime(),
+                        fileRecord.getCtime());
             }
-            return cachedFile.getFile();
-        }
+        });
     }
 
     private FileRecord getFileRecordByFilepath(final Filepath filepath) {
-        return HibernateUtil.exec(new HibernateCallback<FileRecord>() {
+        return HibernateUtil.read(new HibernateCallback<FileRecord>() {
 
             public FileRecord run(Session session) {
                 return getFileRecordByFilepath(filepath, session);
@@ -78,37 +71,18 @@ public class TagsHandler extends AbstractTagsHandler {
     private FileRecord getFileRecordByFilepath(final Filepath filepath, Session session) {
         String name = filepath.getName();
         try {
-            StringBuilder queryTags = new StringBuilder();
-            queryTags.append("from FileRecord f left join fetch f.tags where f.name = :name and (1=1");
-            boolean negate = false;
-            HashMap<String, Object> tagParams = new HashMap<String, Object>();
-            int tagIndex = 0;
-            for (String tag : filepath.getPath()) {
-                if (tag.equals(CONCATTAGS)) {
-                    queryTags.append(" or 1=1");
-                } else if (tag.equals(EXCLUDETAGS)) {
-                    negate = true;
-                } else {
-                    queryTags.append(" and :t").append(tagIndex).append(" ").append(negate ? "not " : "")
-                            .append("in (select t.name from Tag t where t in elements(f.tags))");
-                    tagParams.put("t" + tagIndex, tag);
-                    tagIndex++;
-                    negate = false;
-                }
-            }
-            queryTags.append(")");
+            Long id = null;
             int index = name.indexOf(IDSEPARATOR);
             if (index > 0) {
                 try {
-                    Long id = Long.valueOf(name.substring(0, index));
-                    queryTags.append(" and f.id = ").append(id);
+                    id = Long.valueOf(name.substring(0, index));
                 } catch (NumberFormatException e) {
                     throw new FSHandlerFileException("File with name " + name
                             + " not found in DB and contains invalid ID before separator.");
                 }
             }
-            FileRecord fileRecord = (FileRecord) session.createQuery(queryTags.toString())
-                    .setString("name", filepath.getStrippedFilename()).setProperties(tagParams).uniqueResult();
+            TagQueryPlan plan = TagQueryPlans.INSTANCE.get(filepath);
+            FileRecord fileRecord = (FileRecord) plan.createLookup(session, filepath.getStrippedFilename(), id).uniqueResult();
             if (fileRecord != null) {
                 return fileRecord;
             } else {
@@ -119,72 +93,244 @@ public class TagsHandler extends AbstractTagsHandler {
         }
     }
 
-    private Set<String> listFiles(final Filepath filepath) {
-        return HibernateUtil.exec(new HibernateCallback<Set<String>>() {
-
-            public Set<String> run(Session session) {
-                StringBuilder where = new StringBuilder();
-                int n = 0;
-                HashMap<String, Object> params = new HashMap<String, Object>();
-                boolean negate = false;
-                for (String tag : filepath.getPath()) {
-                    if (tag.equals(CONCATTAGS)) {
-                        where.append(" or 1=1");
-                    } else if (tag.equals(EXCLUDETAGS)) {
-                        negate = true;
-                    } else {
-                        Tag tagEntity = (Tag) session.createQuery("from Tag t where t.name = :tag").setString("tag", tag).uniqueResult();
-                        if (tagEntity != null) {
-                            where.append(" and :tag" + n + (negate ? " not" : "") + " in elements(f.tags)");
-                            negate = false;
-                            params.put("tag" + n, tagEntity);
+    private Set<Long> getTagIds(FileRecord fileRecord) {
+        Set<Long> result = new HashSet<Long>();
+        for (Tag tag : fileRecord.getTags()) {
+            result.add(tag.getId());
+        }
+        return result;
+    }
+
+    private String listedName(long id, String name, boolean duplicate) {
+        return duplicate ? id + IDSEPARATOR + name : name;
+    }
+
+    // a name sorted batch of records being merged, only its current record is kept
+    private static class RecordCursor {
+        ScrollableResults rows;
+        Object[] current;
+
+        RecordCursor(ScrollableResults rows) {
+            this.rows = rows;
+            advance();
+        }
+
+        boolean advance() {
+            current = rows.next() ? rows.get() : null;
+            return current != null;
+        }
+    }
+
+    private static final Comparator<RecordCursor> BYNAME = new Comparator<RecordCursor>() {
+
+        @Override
+        public int compare(RecordCursor o1, RecordCursor o2) {
+            return ((String) o1.current[1]).compareTo((String) o2.current[1]);
+        }
+    };
+
+    // The selected columns of the records with the given ids in name order, the first ones must be f.id and f.name. The
+    // ids are queried one fetch batch at a time and the name sorted batches are merged as they are scrolled, so the cost
+    // follows the size of the selection and not of the whole table, and only one record per batch is kept around.
+    private static class SortedRecords {
+        private PriorityQueue<RecordCursor> cursors;
+        private List<ScrollableResults> opened = new ArrayList<ScrollableResults>();
+
+        SortedRecords(Session session, IdBitmap ids, String columns) {
+            cursors = new PriorityQueue<RecordCursor>(ids.cardinality() / FETCHSIZE + 1, BYNAME);
+            List<Long> batch = new ArrayList<Long>(FETCHSIZE);
+            IdIterator iter = ids.iterator();
+            try {
+                while (iter.hasNext()) {
+                    batch.add(iter.next());
+                    if (batch.size() == FETCHSIZE || !iter.hasNext()) {
+                        ScrollableResults rows = session
+                                .createQuery("select " + columns + " from FileRecord f where f.id in (:ids) order by f.name")
+                                .setParameterList("ids", batch).setFetchSize(FETCHSIZE).setReadOnly(true)
+                                .scroll(ScrollMode.FORWARD_ONLY);
+                        opened.add(rows);
+                        RecordCursor cursor = new RecordCursor(rows);
+                        if (cursor.current != null) {
+                            cursors.add(cursor);
                         }
-                        n++;
+                        batch = new ArrayList<Long>(FETCHSIZE);
                     }
                 }
-                @SuppressWarnings("unchecked")
-                List<FileRecord> fileRecords = session
-                        .createQuery("select f from FileRecord f where 1=1" + where.toString() + " order by f.name").setProperties(params)
-                        .list();
-                // if we're in @@ directory, every file will have an id and tags anyway
-                if (fileRecords.size() > 1 && !filepath.isContentWithTags()) {
-                    FileRecord curRec = fileRecords.get(0);
-                    boolean doRename = false;
-                    boolean equal = false;
-                    for (FileRecord fileRecord : fileRecords.subList(1, fileRecords.size())) {
-                        equal = curRec.getName().equals(fileRecord.getName());
-                        if (equal || doRename) {
-                            session.evict(curRec);
-                            curRec.setName(curRec.getId() + IDSEPARATOR + curRec.getName());
-                        }
-                        doRename = equal;
-                        curRec = fileRecord;
-                    }
-                    if (doRename) {
-                        session.evict(curRec);
-                        curRec.setName(curRec.getId() + IDSEPARATOR + curRec.getName());
-                    }
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        // null after the last record
+        Object[] next() {
+            RecordCursor cursor = cursors.poll();
+            if (cursor == null) {
+                return null;
+            }
+            Object[] result = cursor.current;
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+            return result;
+        }
+
+        void close() {
+            for (ScrollableResults rows : opened) {
+                rows.close();
+            }
+            opened.clear();
+            cursors.clear();
+        }
+    }
+
+    private void listFiles(final Filepath filepath, final BatchFiller filler) {
+        final TagExpression expression = TagQueryPlans.INSTANCE.get(filepath).getExpression();
+        final boolean withTags = filepath.isContentWithTags();
+        ListingCache listingCache = cacheManager.getListingCache();
+        String key = ListingCache.getKey(expression, withTags);
+        long[] stamp = listingCache.getStamp(expression, withTags);
+        String[] cached = listingCache.get(key, stamp);
+        if (cached != null) {
+            for (String name : cached) {
+                filler.add(name);
+            }
+            filler.flush();
+            return;
+        }
+        final List<String> names = new ArrayList<String>();
+        final long epoch = cacheManager.getFileEpoch();
+        boolean cacheable = HibernateUtil.read(new HibernateCallback<Boolean>() {
+
+            public Boolean run(Session session) {
+                IdBitmap ids = TagIndex.INSTANCE.select(expression, tagDictionary.getIds(expression.getTagNames()));
+                if (ids.isEmpty()) {
+                    return true;
                 }
-                Set<String> result = new HashSet<String>();
-                if (filepath.isContentWithTags()) {
-                    StringBuilder strRecord = new StringBuilder();
-                    for (FileRecord fileRecord : fileRecords) {
-                        strRecord.append(fileRecord.getId()).append(IDSEPARATOR);
-                        for (Tag tag : fileRecord.getTags()) {
-                            strRecord.append(tag.getName()).append(IDSEPARATOR);
-                        }
-                        strRecord.append(fileRecord.getName());
-                        result.add(strRecord.toString());
-                        strRecord.setLength(0);
-                    }
+                long cardinality = ids.cardinality();
+                if (cardinality <= LISTINGCACHE_MAXNAMES) {
+                    filler.record(names);
+                }
+                if (withTags) {
+                    listFilesWithTags(session, ids, filler);
                 } else {
-                    for (FileRecord fileRecord : fileRecords) {
-                        result.add(fileRecord.getName());
-                    }
+                    // the files of small listings are cached so the getattr calls that follow don't query the DB,
+                    // bigger ones would just push everything else out of the cache
+                    listFileNames(session, ids, filler, cardinality <= LISTINGCACHE_MAXNAMES ? filepath : null, epoch);
                 }
-                return result;
+                return cardinality <= LISTINGCACHE_MAXNAMES;
             }
         });
+        filler.flush();
+        if (cacheable) {
+            listingCache.put(key, stamp, names);
+        }
+    }
+
+    // Only (id, name, size, mtime, ctime) tuples are fetched, no entities are created. The tuples come sorted by name so a
+    // name is a duplicate if it equals either of its neighbours, such names get the id prefix. With the listed directory
+    // given, the listed files are put to the file cache by their paths.
+    private void listFileNames(Session session, IdBitmap ids, BatchFiller filler, Filepath directory, long epoch) {
+        String prefix = directory == null ? null : directory.asStringPath() + File.separator + ENDOFTAGS + File.separator;
+        SortedRecords records = new SortedRecords(session, ids, "f.id, f.name, f.size, f.mtime, f.ctime");
+        try {
+            Object[] prev = null;
+            boolean prevDuplicate = false;
+            Object[] record;
+            while ((record = records.next()) != null) {
+                if (prev != null) {
+                    boolean equal = prev[1].equals(record[1]);
+                    addListed(prev, equal || prevDuplicate, filler, directory, prefix, epoch);
+                    prevDuplicate = equal;
+                }
+                prev = record;
+            }
+            if (prev != null) {
+                addListed(prev, prevDuplicate, filler, directory, prefix, epoch);
+            }
+        } finally {
+            records.close();
+        }
+    }
+
+    private void addListed(Object[] record, boolean duplicate, BatchFiller filler, Filepath directory, String prefix,
+            long epoch) {
+        Long id = (Long) record[0];
+        String name = (String) record[1];
+        String listed = listedName(id, name, duplicate);
+        filler.add(listed);
+        if (directory != null) {
+            cacheManager.putCachedFile(prefix + listed, directory, new CachedFile(name, id, (Long) record[2],
+                    (Long) record[3], (Long) record[4]), epoch);
+        }
+    }
+
+    // If we're in @@ directory, every file will have an id and tags anyway. The (id, name) tuples are buffered one fetch
+    // batch at a time and the tags of the whole batch are loaded with a single query.
+    private void listFilesWithTags(Session session, IdBitmap ids, BatchFiller filler) {
+        SortedRecords records = new SortedRecords(session, ids, "f.id, f.name");
+        try {
+            long[] batchIds = new long[FETCHSIZE];
+            String[] batchNames = new String[FETCHSIZE];
+            int batchSize = 0;
+            StringBuilder strRecord = new StringBuilder();
+            Object[] record;
+            while ((record = records.next()) != null) {
+                batchIds[batchSize] = (Long) record[0];
+                batchNames[batchSize++] = (String) record[1];
+                if (batchSize == FETCHSIZE) {
+                    fillWithTags(session, batchIds, batchNames, batchSize, strRecord, filler);
+                    batchSize = 0;
+                }
+            }
+            fillWithTags(session, batchIds, batchNames, batchSize, strRecord, filler);
+        } finally {
+            records.close();
+        }
+    }
+
+    private void fillWithTags(Session session, long[] batchIds, String[] batchNames, int batchSize, StringBuilder strRecord,
+            BatchFiller filler) {
+        if (batchSize == 0) {
+            return;
+        }
+        List<Long> idList = new ArrayList<Long>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            idList.add(batchIds[i]);
+        }
+        ScrollableResults fileTags = session
+                .createQuery("select f.id, t.name from FileRecord f join f.tags t where f.id in (:ids) order by f.id, t.name")
+                .setParameterList("ids", idList).setFetchSize(FETCHSIZE).scroll(ScrollMode.FORWARD_ONLY);
+        // id -> "tag1|_|tag2|_|"
+        Map<Long, String> tagsById = new HashMap<Long, String>(batchSize * 2);
+        try {
+            long curId = 0;
+            strRecord.setLength(0);
+            while (fileTags.next()) {
+                long id = fileTags.getLong(0);
+                if (id != curId && strRecord.length() > 0) {
+                    tagsById.put(curId, strRecord.toString());
+                    strRecord.setLength(0);
+                }
+                curId = id;
+                strRecord.append(fileTags.getString(1)).append(IDSEPARATOR);
+            }
+            if (strRecord.length() > 0) {
+                tagsById.put(curId, strRecord.toString());
+            }
+        } finally {
+            fileTags.close();
+        }
+        for (int i = 0; i < batchSize; i++) {
+            strRecord.setLength(0);
+            strRecord.append(batchIds[i]).append(IDSEPARATOR);
+            String tags = tagsById.get(batchIds[i]);
+            if (tags != null) {
+                strRecord.append(tags);
+            }
+            filler.add(strRecord.append(batchNames[i]).toString());
+            batchNames[i] = null;
+        }
     }
 
     @Override
@@ -192,15 +338,21 @@ public class TagsHandler extends AbstractTagsHandler {
         if (!filepath.getStrippedFilename().equals(filepath.getName())) {
             throw new FSHandlerException("notfound");
         }
-        HibernateUtil.exec(new HibernateCallback<Void>() {
+        FileRecord fileRecord = HibernateUtil.exec(new HibernateCallback<FileRecord>() {
 
-            public Void run(Session session) {
-                FileRecord fileRecord = new FileRecord(filepath.getStrippedFilename(), new HashSet<Tag>(filepath.getTagsEntries()));
+            public FileRecord run(Session session) {
+                FileRecord fileRecord = new FileRecord(filepath.getStrippedFilename(), filepath.getTagsEntries(session));
+                long now = System.currentTimeMillis();
+                fileRecord.setSize(0L);
+                fileRecord.setMtime(now);
+                fileRecord.setCtime(now);
                 session.save(fileRecord);
-                cacheManager.removeNonExistentFile(filepath.asStringPath());
-                return null;
+                return fileRecord;
             }
         });
+        Set<Long> tagIds = filepath.getTagIds();
+        TagIndex.INSTANCE.setFileTags(fileRecord.getId(), tagIds);
+        MetadataEventBus.INSTANCE.publish(MetadataEvent.fileCreated(fileRecord.getId(), fileRecord.getName(), tagIds));
         open(filepath, info);
     }
 
@@ -208,21 +360,8 @@ public class TagsHandler extends AbstractTagsHandler {
     public void getattr(final Filepath filepath, StatWrapper stat) throws FSHandlerException {
         if (filepath.getName() == null) {
             if (filepath.isTagPath()) {
-                synchronized (getattrSession) {
-                    Tag tag = getTagByName(filepath.getPathLast(), getattrSession);
-                    if (tag == null) {
-                        throw new FSHandlerException("notfound");
-                    }
-                    if (checkLackOfParent(filepath, tag)) {
-                        // this is not normal, tag has a parent but it's not present in the file path.
-                        // There's a chance that the tag was renamed/moved so we're clearing the session cache and trying again.
-                        getattrSession.clear();
-                        tag = getTagByName(filepath.getPathLast(), getattrSession);
-                        if (checkLackOfParent(filepath, tag)) {
-                            // we've failed twice so this should be an actual error
-                            throw new FSHandlerException("notfound");
-                        }
-                    }
+                if (tagDictionary.get(filepath.getPathLast()) == null || checkLackOfParent(filepath)) {
+                    throw new FSHandlerException("notfound");
                 }
             }
             stat.mode(VirtualEntry.DIRMODE);
@@ -234,9 +373,10 @@ public class TagsHandler extends AbstractTagsHandler {
                 stat.setAllTimesMillis(System.currentTimeMillis());
             } else {
                 try {
-                    File file = openFileByFilepath(filepath);
-                    stat.size(file.length());
-                    stat.setAllTimesMillis(file.lastModified());
+                    FileAttributes attributes = FileAttributes.of(resolveFile(filepath));
+                    stat.size(attributes.getSize());
+                    stat.setAllTimesMillis(attributes.getMtime());
+                    stat.ctime(attributes.getCtime() / 1000);
                 } catch (FSHandlerFileException e) {
                     throw new FSHandlerException("notfound");
                 }
@@ -244,9 +384,10 @@ public class TagsHandler extends AbstractTagsHandler {
         }
     }
 
-    private boolean checkLackOfParent(final Filepath filepath, Tag tag) {
-        return tag.getParent() != null
-                && (filepath.getPathLength() < 2 || !Arrays.asList(filepath.getPath()).contains(tag.getParent().getName()));
+    // tag has a parent but it's not present in the file path
+    private boolean checkLackOfParent(final Filepath filepath) {
+        String parentName = tagDictionary.getParentName(filepath.getPathLast());
+        return parentName != null && (filepath.getPathLength() < 2 || !Arrays.asList(filepath.getPath()).contains(parentName));
     }
 
     @Override
@@ -269,52 +410,65 @@ public class TagsHandler extends AbstractTagsHandler {
         if (filepath.isTagsListPath()) {
             return;
         }
-        synchronized (cacheManager) {
-            String strPath = filepath.asStringPath();
-            LockableFile lockable = cacheManager.getStreamFile(strPath);
-            if (lockable != null) {
-                lockable.lock();
-            } else {
-                File file = openFileByFilepath(filepath);
+        String strPath = filepath.asStringPath();
+        // resolve outside of the lock, a DB query may be needed
+        CachedFile cachedFile = resolveFile(filepath);
+        LockableFile lockable;
+        synchronized (cacheManager.getLock(strPath)) {
+            lockable = cacheManager.getStreamFile(strPath);
+            if (lockable == null || lockable.lock() == 0) {
                 try {
-                    file.getParentFile().mkdirs();
-                    file.createNewFile();
-                    RandomAccessFile raFile = new RandomAccessFile(file, "rw");
-                    cacheManager.putStreamFile(strPath, new LockableFile(raFile));
+                    RandomAccessFile raFile = Storage.INSTANCE.open(cachedFile.getId(), cachedFile.getName());
+                    lockable = new LockableFile(raFile, cachedFile.getId(), FileAttributes.acquire(cachedFile));
+                    cacheManager.putStreamFile(strPath, lockable);
                 } catch (IOException e) {
                     e.printStackTrace();
+                    return;
                 }
             }
         }
+        if (info != null) {
+            info.fh(FileHandleTable.INSTANCE.register(new FileHandle(this, filepath, strPath, lockable)));
+            info.keep_cache(KernelCache.INSTANCE.keepCache(strPath, lockable.getId(), lockable.getAttributes()));
+        }
     }
 
     @Override
     public int read(Filepath filepath, ByteBuffer buffer, long size, long offset) throws FSHandlerException {
         if (filepath.isTagsListPath()) {
             int result = 0;
-            filepath.removeTagslistExt();
-            for (Tag tag : getFileRecordByFilepath(filepath).getTags()) {
+            for (Tag tag : getFileRecordByFilepath(filepath.withoutTagslistExt()).getTags()) {
                 byte[] tagName = tag.getName().getBytes(charset);
                 buffer.put(tagName).put((byte) '\n');
                 result += tagName.length + 1;
             }
             return result;
         }
+        LockableFile lockableStream = cacheManager.getStreamFile(filepath.asStringPath());
+        if (lockableStream == null) {
+            throw new FSHandlerException("notopened");
+        }
+        return read(lockableStream, buffer, offset);
+    }
+
+    @Override
+    public int read(FileHandle handle, ByteBuffer buffer, long size, long offset) throws FSHandlerException {
+        ReadAhead readAhead = handle.getReadAhead();
+        if (readAhead == null) {
+            return read(handle.getFile(), buffer, offset);
+        }
         try {
-            String strPath = filepath.asStringPath();
-            LockableFile lockableStream = cacheManager.getStreamFile(strPath);
-            if (lockableStream == null) {
-                throw new FSHandlerException("notopened");
-            }
-            synchronized (lockableStream) {
-                RandomAccessFile file = lockableStream.getFile();
-                file.seek(offset);
-                int read = file.getChannel().read(buffer);
-                if (read < 0) {
-                    read = 0;
-                }
-                return read;
-            }
+            WriteBuffer.flushFile(handle.getFile().getId());
+            return readAhead.read(buffer, offset);
+        } catch (IOException e) {
+            throw new FSHandlerException("err: " + e.getMessage());
+        }
+    }
+
+    private int read(LockableFile lockableStream, ByteBuffer buffer, long offset) throws FSHandlerException {
+        try {
+            WriteBuffer.flushFile(lockableStream.getId());
+            return lockableStream.readContent(buffer, offset);
         } catch (IOException e) {
             throw new FSHandlerException("err: " + e.getMessage());
         }
@@ -337,31 +491,114 @@ public class TagsHandler extends AbstractTagsHandler {
             }
             return tags;
         } else {
-            if (filepath.getPathLength() == 0 || filepath.getPathLast().equals(Consts.CONCATTAGS)
-                    || filepath.getPathLast().equals(Consts.EXCLUDETAGS)) {
-                throw new FSHandlerException("Empty tags or rvalue in concat.");
-            }
-            return listFiles(filepath);
+            checkContentPath(filepath);
+            final Set<String> result = new HashSet<String>();
+            listFiles(filepath, new BatchFiller(new DirectoryFiller() {
+
+                @Override
+                public boolean add(String... files) {
+                    return add(Arrays.asList(files));
+                }
+
+                @Override
+                public boolean add(Iterable<String> files) {
+                    for (String file : files) {
+                        result.add(file);
+                    }
+                    return true;
+                }
+            }));
+            return result;
+        }
+    }
+
+    @Override
+    public void readdir(Filepath filepath, DirectoryFiller filler) throws FSHandlerException {
+        if (!filepath.isContent()) {
+            filler.add(readdir(filepath));
+        } else {
+            checkContentPath(filepath);
+            listFiles(filepath, new BatchFiller(filler));
+        }
+    }
+
+    private void checkContentPath(Filepath filepath) throws FSHandlerException {
+        if (filepath.getPathLength() == 0 || filepath.getPathLast().equals(Consts.CONCATTAGS)
+                || filepath.getPathLast().equals(Consts.EXCLUDETAGS)) {
+            throw new FSHandlerException("Empty tags or rvalue in concat.");
         }
     }
 
     @Override
     public void release(Filepath filepath, FileInfoWrapper info) throws FSHandlerException {
-        synchronized (cacheManager) {
-            String strPath = filepath.asStringPath();
-            LockableFile lockableFile = cacheManager.getStreamFile(strPath);
-            if (lockableFile == null) {
-                throw new FSHandlerException("notopened");
+        String strPath = filepath.asStringPath();
+        LockableFile lockableFile = cacheManager.getStreamFile(strPath);
+        if (lockableFile == null) {
+            throw new FSHandlerException("notopened");
+        }
+        release(strPath, lockableFile);
+    }
+
+    @Override
+    public void release(FileHandle handle) throws FSHandlerException {
+        if (handle.getReadAhead() != null) {
+            handle.getReadAhead().close();
+        }
+        try {
+            if (handle.getWriteBuffer() != null) {
+                handle.getWriteBuffer().release();
             }
+            KernelCache.INSTANCE.released(handle.getStrPath(), handle.getFile().getId(), handle.getFile().getAttributes(),
+                    handle.isChangedElsewhere());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new FSHandlerException("err: " + e.getMessage());
+        } finally {
+            release(handle.getStrPath(), handle.getFile());
+        }
+    }
+
+    @Override
+    public void flush(FileHandle handle) throws FSHandlerException {
+        if (handle.getWriteBuffer() == null) {
+            return;
+        }
+        try {
+            handle.getWriteBuffer().flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new FSHandlerException("err: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void fsync(FileHandle handle, boolean dataOnly) throws FSHandlerException {
+        flush(handle);
+        try {
+            handle.getFile().getChannel().force(!dataOnly);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new FSHandlerException("err: " + e.getMessage());
+        }
+    }
+
+    private void release(String strPath, LockableFile lockableFile) {
+        boolean closed = false;
+        synchronized (cacheManager.getLock(strPath)) {
             if (lockableFile.release() == 0) {
                 try {
                     lockableFile.getFile().close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
-                cacheManager.removeStreamFile(strPath);
+                cacheManager.removeStreamFile(strPath, lockableFile);
+                closed = true;
             }
         }
+        if (closed) {
+            // saves the attributes, that's a DB write so it's done outside of the lock
+            FileAttributes.release(lockableFile.getAttributes());
+        }
     }
 
     @Override
@@ -369,16 +606,19 @@ public class TagsHandler extends AbstractTagsHandler {
         if (from.getName() == null && (!from.isTagPath() || !to.isTagPath() || to.getName() != null)) {
             throw new FSHandlerException("notsupp");
         }
-        HibernateUtil.exec(new HibernateCallback<Void>() {
+        if (from.getName() == null) {
+            renameTag(from, to);
+            return;
+        }
+        final Set<Long> toTagIds = to.getTagIds();
+        MetadataEvent retagged = HibernateUtil.exec(new HibernateCallback<MetadataEvent>() {
 
-            public Void run(Session session) {
-                if (from.getName() == null) {
-                    renameTag(from, to, session);
-                    return null;
-                }
+            public MetadataEvent run(Session session) {
                 FileRecord fileRecord = getFileRecordByFilepath(from, session);
+                String fromName = fileRecord.getName();
+                Set<Long> fromTagIds = getTagIds(fileRecord);
                 fileRecord.getTags().clear();
-                fileRecord.getTags().addAll(to.getTagsEntries());
+                fileRecord.getTags().addAll(to.getTagsEntries(session));
                 String toName = to.getStrippedFilename();
                 if (!fileRecord.getName().equals(toName)) {
                     try {
@@ -390,28 +630,37 @@ public class TagsHandler extends AbstractTagsHandler {
                     } catch (FSHandlerFileException e) {
                         // file not found in DB, no need to delete target
                     }
-                    openFileByFilepath(from).renameTo(openFileByNameId(toName, fileRecord.getId()));
+                    Storage.INSTANCE.rename(fileRecord.getId(), fromName, toName);
                 }
                 fileRecord.setName(toName);
-                synchronized (cacheManager) {
-                    cacheManager.removeCachedFile(from);
-                    cacheManager.removeCachedFile(to);
-                    cacheManager.removeNonExistentFile(from.asStringPath());
-                    cacheManager.removeNonExistentFile(to.asStringPath());
-                }
-                return null;
+                return MetadataEvent.fileRetagged(fileRecord.getId(), fromName, toName, fromTagIds, toTagIds);
             }
         });
-
+        TagIndex.INSTANCE.setFileTags(retagged.getId(), toTagIds);
+        MetadataEventBus.INSTANCE.publish(retagged);
     }
 
     @Override
     public void truncate(Filepath filepath, long offset) throws FSHandlerException {
+        CachedFile cachedFile = resolveFile(filepath);
+        // the mappings past the new end of file must not be read
+        MappedRegionCache.INSTANCE.beginChange(cachedFile.getId());
         try {
-            File file = openFileByFilepath(filepath);
-            FileOutputStream fileOutputStream = new FileOutputStream(file);
-            fileOutputStream.getChannel().truncate(offset);
-            fileOutputStream.close();
+            // the buffered writes go first, the truncation has to apply to them too
+            WriteBuffer.flushFile(cachedFile.getId());
+            RandomAccessFile file = Storage.INSTANCE.open(cachedFile.getId(), cachedFile.getName());
+            try {
+                file.setLength(offset);
+            } finally {
+                file.close();
+            }
+            FileAttributes attributes = FileAttributes.get(cachedFile.getId());
+            if (attributes != null) {
+                attributes.truncated(offset);
+            } else {
+                long now = System.currentTimeMillis();
+                FileAttributes.save(cachedFile.getId(), offset, now, now);
+            }
             return;
         } catch (FileNotFoundException e) {
             e.printStackTrace();
@@ -419,36 +668,59 @@ public class TagsHandler extends AbstractTagsHandler {
         } catch (IOException e) {
             e.printStackTrace();
             throw new FSHandlerException(e.getMessage());
+        } finally {
+            // after the truncation so a chunk prefetched meanwhile isn't taken for the new version
+            ReadAhead.fileChanged(cachedFile.getId());
+            MappedRegionCache.INSTANCE.endChange(cachedFile.getId());
         }
     }
 
     @Override
     public void unlink(final Filepath filepath) {
-        HibernateUtil.exec(new HibernateCallback<Void>() {
+        MetadataEvent deleted = HibernateUtil.exec(new HibernateCallback<MetadataEvent>() {
 
-            public Void run(Session session) {
-                openFileByFilepath(filepath).delete();
-                session.delete(getFileRecordByFilepath(filepath, session));
-                cacheManager.removeCachedFile(filepath);
-                return null;
+            public MetadataEvent run(Session session) {
+                FileRecord fileRecord = getFileRecordByFilepath(filepath, session);
+                Storage.INSTANCE.delete(fileRecord.getId(), fileRecord.getName());
+                session.delete(fileRecord);
+                return MetadataEvent.fileDeleted(fileRecord.getId(), fileRecord.getName(), getTagIds(fileRecord));
             }
         });
+        TagIndex.INSTANCE.removeFile(deleted.getId());
+        MappedRegionCache.INSTANCE.invalidate(deleted.getId());
+        MetadataEventBus.INSTANCE.publish(deleted);
 
     }
 
     @Override
     public int write(Filepath filepath, ByteBuffer buffer, long bufSize, long writeOffset) throws FSHandlerException {
+        LockableFile lockable = cacheManager.getStreamFile(filepath.asStringPath());
+        if (lockable == null) {
+            throw new FSHandlerException("notopened");
+        }
+        return write(lockable, buffer, bufSize, writeOffset);
+    }
+
+    @Override
+    public int write(FileHandle handle, ByteBuffer buffer, long bufSize, long writeOffset) throws FSHandlerException {
+        if (handle.getWriteBuffer() == null) {
+            return write(handle.getFile(), buffer, bufSize, writeOffset);
+        }
         try {
-            String strPath = filepath.asStringPath();
-            LockableFile lockable = cacheManager.getStreamFile(strPath);
-            if (lockable == null) {
-                throw new FSHandlerException("notopened");
-            }
-            synchronized (lockable) {
-                RandomAccessFile file = lockable.getFile();
-                file.seek(writeOffset);
-                file.getChannel().write(buffer);
-            }
+            handle.getWriteBuffer().write(handle.getFile(), buffer, writeOffset);
+            return (int) bufSize;
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new FSHandlerException("err: " + e.getMessage());
+        }
+    }
+
+    private int write(LockableFile lockable, ByteBuffer buffer, long bufSize, long writeOffset) throws FSHandlerException {
+        try {
+            // the buffered writes of other handles are older
+            WriteBuffer.flushFile(lockable.getId());
+            lockable.write(buffer, writeOffset);
+            ReadAhead.fileChanged(lockable.getId());
             return (int) bufSize;
         } catch (FileNotFoundException e) {
             e.printStackTrace();
@@ -3,6 +3,7 @@ package ru.rkfg.jtagsfs;
 import java.nio.ByteBuffer;
 import java.util.Set;
 
+import net.fusejna.DirectoryFiller;
 import net.fusejna.StructFuseFileInfo.FileInfoWrapper;
 import net.fusejna.StructStat.StatWrapper;
 import ru.rkfg.jtagsfs.FSHandlerManager.FSHandlerException;
@@ -14,6 +15,11 @@ public abstract class UnsupportedFSHandler implements FSHandler {
         throw new FSHandlerException("notsupp");
     }
 
+    @Override
+    public void readdir(Filepath filepath, DirectoryFiller filler) throws FSHandlerException {
+        filler.add(readdir(filepath));
+    }
+
     @Override
     public void getattr(Filepath filepath, StatWrapper stat) throws FSHandlerException {
         throw new FSHandlerException("notsupp");
@@ -64,6 +70,29 @@ public abstract class UnsupportedFSHandler implements FSHandler {
         throw new FSHandlerException("notsupp");
     }
 
+    @Override
+    public int read(FileHandle handle, ByteBuffer buffer, long size, long offset) throws FSHandlerException {
+        return read(handle.getFilepath(), buffer, size, offset);
+    }
+
+    @Override
+    public int write(FileHandle handle, ByteBuffer buffer, long bufSize, long writeOffset) throws FSHandlerException {
+        return write(handle.getFilepath(), buffer, bufSize, writeOffset);
+    }
+
+    @Override
+    public void release(FileHandle handle) throws FSHandlerException {
+        release(handle.getFilepath(), null);
+    }
+
+    @Override
+    public void flush(FileHandle handle) throws FSHandlerException {
+    }
+
+    @Override
+    public void fsync(FileHandle handle, boolean dataOnly) throws FSHandlerException {
+    }
+
     @Override
     public void rmdir(Filepath strip) throws FSHandlerException {
         throw new FSHandlerException("notsupp");
@@ -1,42 +1,39 @@
 package ru.rkfg.jtagsfs;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.List;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
+// An immutable set of virtual entries. The listing is built once and shared by every readdir, the entries are looked
+// up by name in a map. Adding entries makes a new directory.
 public class VirtualDirectory {
 
-    public class VirtualEntryNotFound extends Exception {
-
-        /**
-         * 
-         */
-        private static final long serialVersionUID = -4535856394521288178L;
+    private final Map<String, VirtualEntry> entries;
+    private final Set<String> names;
 
+    public VirtualDirectory(VirtualEntry... entries) {
+        this(Collections.<String, VirtualEntry> emptyMap(), entries);
     }
 
-    private List<VirtualEntry> entries = new ArrayList<VirtualEntry>();
+    private VirtualDirectory(Map<String, VirtualEntry> base, VirtualEntry... added) {
+        entries = new LinkedHashMap<String, VirtualEntry>(base);
+        for (VirtualEntry entry : added) {
+            entries.put(entry.getName(), entry);
+        }
+        names = Collections.unmodifiableSet(entries.keySet());
+    }
 
     public Set<String> list() {
-        Set<String> result = new HashSet<String>();
-        for (VirtualEntry entry : entries) {
-            result.add(entry.getName());
-        }
-        return result;
+        return names;
     }
 
-    public VirtualEntry getEntryByName(String name) throws VirtualEntryNotFound {
-        for (VirtualEntry entry : entries) {
-            if (entry.getName().equals(name)) {
-                return entry;
-            }
-        }
-        throw new VirtualEntryNotFound();
+    // null if there's no such entry
+    public VirtualEntry getEntryByName(String name) {
+        return entries.get(name);
     }
 
-    public void add(VirtualEntry... entry) {
-        entries.addAll(Arrays.asList(entry));
+    public VirtualDirectory with(VirtualEntry... added) {
+        return new VirtualDirectory(entries, added);
     }
 }
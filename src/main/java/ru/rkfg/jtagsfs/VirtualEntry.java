@@ -6,9 +6,9 @@ public class VirtualEntry {
     public static long FILEMODE = 0100644;
     public static long DIRMODE = 040755;
 
-    String name;
-    EntryType type;
-    long size;
+    final String name;
+    final EntryType type;
+    final long size;
 
     public VirtualEntry(String name, EntryType type, long size) {
         super();
@@ -21,26 +21,14 @@ public class VirtualEntry {
         return name;
     }
 
-    public void setName(String name) {
-        this.name = name;
-    }
-
     public EntryType getType() {
         return type;
     }
 
-    public void setType(EntryType type) {
-        this.type = type;
-    }
-
     public long getSize() {
         return size;
     }
 
-    public void setSize(long size) {
-        this.size = size;
-    }
-
     @Override
     public boolean equals(Object obj) {
         if (this == obj)
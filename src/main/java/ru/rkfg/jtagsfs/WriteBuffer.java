@@ -0,0 +1,245 @@
+package ru.rkfg.jtagsfs;
+
+import static ru.rkfg.jtagsfs.Consts.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Write-back buffer of a file, shared by all its open handles so the buffered writes stay in the order they were
+// made. Small writes are merged with the adjacent and overlapping ones into extents kept in memory and written out when
+// enough is buffered, on release, truncate and fsync. Reads of a file with buffered writes flush them first so the data
+// is always seen, and a direct write flushes the buffer before it so older data never lands over it. All buffers share
+// the memory limit, a writer that hits it flushes the buffer and writes directly until there's room again.
+public class WriteBuffer {
+
+    private static class Extent {
+        long start;
+        byte[] data = new byte[0];
+        int length;
+
+        Extent(long start) {
+            this.start = start;
+        }
+
+        long end() {
+            return start + length;
+        }
+    }
+
+    private static final AtomicLong used = new AtomicLong();
+    // number of dirty buffers by file id stripe, so the reads of clean files don't look anything up
+    private static final AtomicIntegerArray dirtyStripes = new AtomicIntegerArray(1024);
+    private static final Map<Long, WriteBuffer> buffers = new HashMap<Long, WriteBuffer>();
+
+    private static final AtomicLong bufferedWrites = new AtomicLong();
+    private static final AtomicLong directWrites = new AtomicLong();
+    private static final AtomicLong flushedExtents = new AtomicLong();
+    private static final AtomicLong flushedBytes = new AtomicLong();
+
+    // the write size that goes directly and the buffered size that is flushed, the tests set a small one
+    private static volatile int flushSize = WRITEBACK_FLUSH;
+
+    private long id;
+    // the extents are written through the file of the last write, it stays open as every handle flushes on release
+    private LockableFile file;
+    private TreeMap<Long, Extent> extents = new TreeMap<Long, Extent>();
+    private int buffered;
+    // guarded by the buffers map
+    private int handles;
+
+    private WriteBuffer(long id) {
+        this.id = id;
+    }
+
+    public static boolean isEnabled() {
+        return flushSize > 0;
+    }
+
+    static int getFlushSize() {
+        return flushSize;
+    }
+
+    static void setFlushSize(int size) {
+        flushSize = size;
+    }
+
+    // the buffer of the file for a handle being opened
+    public static WriteBuffer acquire(LockableFile file) {
+        synchronized (buffers) {
+            WriteBuffer buffer = buffers.get(file.getId());
+            if (buffer == null) {
+                buffer = new WriteBuffer(file.getId());
+                buffers.put(file.getId(), buffer);
+            }
+            buffer.handles++;
+            return buffer;
+        }
+    }
+
+    // Flushes the buffer when a handle is closed. If that fails the buffered data is dropped, its file may be closed
+    // right after and retrying on every read would fail all of them.
+    public void release() throws IOException {
+        try {
+            flush();
+        } catch (IOException e) {
+            discard();
+            throw e;
+        } finally {
+            synchronized (buffers) {
+                if (--handles == 0) {
+                    buffers.remove(id);
+                }
+            }
+        }
+    }
+
+    private static int stripe(long fileId) {
+        return (int) (fileId & dirtyStripes.length() - 1);
+    }
+
+    // makes the buffered writes of the file visible to the readers
+    public static void flushFile(long fileId) throws IOException {
+        if (dirtyStripes.get(stripe(fileId)) == 0) {
+            return;
+        }
+        WriteBuffer buffer;
+        synchronized (buffers) {
+            buffer = buffers.get(fileId);
+        }
+        if (buffer != null) {
+            buffer.flush();
+        }
+    }
+
+    public synchronized void write(LockableFile file, ByteBuffer buffer, long offset) throws IOException {
+        int length = buffer.remaining();
+        if (length >= flushSize || used.get() + length > WRITEBACK_MAX) {
+            // big writes gain nothing from buffering, and there's no room for more when the limit is hit
+            flush();
+            file.write(buffer, offset);
+            ReadAhead.fileChanged(id);
+            directWrites.incrementAndGet();
+            return;
+        }
+        if (extents.isEmpty()) {
+            dirtyStripes.incrementAndGet(stripe(id));
+        }
+        this.file = file;
+        Extent target;
+        Entry<Long, Extent> floor = extents.floorEntry(offset);
+        if (floor != null && floor.getValue().end() >= offset) {
+            target = floor.getValue();
+        } else {
+            target = new Extent(offset);
+            extents.put(offset, target);
+        }
+        long end = offset + length;
+        // the following extents touching the write are merged into the target, their parts it overwrites are skipped
+        Iterator<Extent> iterator = extents.tailMap(target.start, false).values().iterator();
+        while (iterator.hasNext()) {
+            Extent next = iterator.next();
+            if (next.start > end) {
+                break;
+            }
+            if (next.end() > end) {
+                put(target, next.data, (int) (end - next.start), (int) (next.end() - end), end - target.start);
+            }
+            iterator.remove();
+            buffered -= next.length;
+            used.addAndGet(-next.data.length);
+        }
+        int position = (int) (offset - target.start);
+        ensureCapacity(target, position + length);
+        buffer.get(target.data, position, length);
+        if (position + length > target.length) {
+            buffered += position + length - target.length;
+            target.length = position + length;
+        }
+        bufferedWrites.incrementAndGet();
+        file.written(end);
+        if (buffered >= flushSize) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if (extents.isEmpty()) {
+            return;
+        }
+        try {
+            Iterator<Extent> iterator = extents.values().iterator();
+            while (iterator.hasNext()) {
+                Extent extent = iterator.next();
+                // the attributes were updated when the data was buffered
+                file.writeOut(ByteBuffer.wrap(extent.data, 0, extent.length), extent.start);
+                iterator.remove();
+                buffered -= extent.length;
+                used.addAndGet(-extent.data.length);
+                flushedExtents.incrementAndGet();
+                flushedBytes.addAndGet(extent.length);
+            }
+        } finally {
+            ReadAhead.fileChanged(id);
+            if (extents.isEmpty()) {
+                dirtyStripes.decrementAndGet(stripe(id));
+            }
+        }
+    }
+
+    private synchronized void discard() {
+        if (extents.isEmpty()) {
+            return;
+        }
+        for (Extent extent : extents.values()) {
+            used.addAndGet(-extent.data.length);
+        }
+        extents.clear();
+        buffered = 0;
+        dirtyStripes.decrementAndGet(stripe(id));
+    }
+
+    private void put(Extent target, byte[] source, int sourceOffset, int length, long position) {
+        ensureCapacity(target, (int) position + length);
+        System.arraycopy(source, sourceOffset, target.data, (int) position, length);
+        if (position + length > target.length) {
+            buffered += position + length - target.length;
+            target.length = (int) position + length;
+        }
+    }
+
+    private void ensureCapacity(Extent extent, int capacity) {
+        if (extent.data.length < capacity) {
+            byte[] grown = new byte[Math.max(capacity, Math.min(extent.data.length * 2, flushSize * 2))];
+            System.arraycopy(extent.data, 0, grown, 0, extent.length);
+            used.addAndGet(grown.length - extent.data.length);
+            extent.data = grown;
+        }
+    }
+
+    public static long getUsed() {
+        return used.get();
+    }
+
+    public static long getBufferedWrites() {
+        return bufferedWrites.get();
+    }
+
+    public static long getDirectWrites() {
+        return directWrites.get();
+    }
+
+    public static long getFlushedExtents() {
+        return flushedExtents.get();
+    }
+
+    public static long getFlushedBytes() {
+        return flushedBytes.get();
+    }
+}
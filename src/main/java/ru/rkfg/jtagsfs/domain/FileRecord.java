@@ -11,6 +11,8 @@ import javax.persistence.ManyToMany;
 import javax.persistence.OrderBy;
 import javax.persistence.Table;
 
+import org.hibernate.annotations.BatchSize;
+
 @Entity
 @Table(indexes = { @Index(columnList = "name") })
 public class FileRecord {
@@ -20,7 +22,12 @@ public class FileRecord {
     String name;
     @ManyToMany(fetch = FetchType.LAZY)
     @OrderBy("name")
+    @BatchSize(size = 100)
     Set<Tag> tags;
+    // attributes of the data file, null for the records made before they were stored
+    Long size;
+    Long mtime;
+    Long ctime;
 
     public FileRecord() {
     }
@@ -55,4 +62,28 @@ public class FileRecord {
         this.tags = tags;
     }
 
+    public Long getSize() {
+        return size;
+    }
+
+    public void setSize(Long size) {
+        this.size = size;
+    }
+
+    public Long getMtime() {
+        return mtime;
+    }
+
+    public void setMtime(Long mtime) {
+        this.mtime = mtime;
+    }
+
+    public Long getCtime() {
+        return ctime;
+    }
+
+    public void setCtime(Long ctime) {
+        this.ctime = ctime;
+    }
+
 }
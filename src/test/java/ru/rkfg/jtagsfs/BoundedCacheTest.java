@@ -0,0 +1,131 @@
+package ru.rkfg.jtagsfs;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BoundedCacheTest {
+
+    // at most one entry is kept per segment when it's over the budget
+    private static final int SEGMENTS = 16;
+
+    private static final BoundedCache.Weigher<String, String> LENGTH = new BoundedCache.Weigher<String, String>() {
+
+        @Override
+        public int weigh(String key, String value) {
+            return value.length();
+        }
+    };
+
+    @Test
+    public void getPutRemove() {
+        BoundedCache<String, String> cache = newCache(100, 10000, null);
+        assertNull(cache.get("a"));
+        cache.put("a", "1");
+        cache.put("b", "22");
+        assertEquals("1", cache.get("a"));
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.weight());
+        cache.put("b", "4444");
+        assertEquals(5, cache.weight());
+        assertEquals("4444", cache.remove("b"));
+        assertNull(cache.get("b"));
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void staysWithinTheLimits() {
+        BoundedCache<String, String> cache = newCache(160, 100000, null);
+        for (int i = 0; i < 10000; i++) {
+            cache.put("key" + i, "v");
+        }
+        assertTrue(cache.size() <= 160);
+        assertTrue(cache.getEvictions() >= 10000 - 160);
+        BoundedCache<String, String> heavy = newCache(100000, 1600, null);
+        for (int i = 0; i < 10000; i++) {
+            heavy.put("key" + i, "0123456789");
+        }
+        assertTrue(heavy.weight() <= 1600);
+    }
+
+    @Test
+    public void frequentEntriesSurviveAScan() {
+        BoundedCache<String, String> cache = newCache(1600, 100000, null);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 100; i++) {
+                cache.put("hot" + i, "v");
+                cache.get("hot" + i);
+            }
+        }
+        for (int i = 0; i < 100000; i++) {
+            cache.put("cold" + i, "v");
+        }
+        int kept = 0;
+        for (int i = 0; i < 100; i++) {
+            if (cache.get("hot" + i) != null) {
+                kept++;
+            }
+        }
+        // only the last ones of every segment are still in the window and may go
+        assertTrue(kept >= 100 - SEGMENTS);
+    }
+
+    @Test
+    public void expiresIdleEntries() throws InterruptedException {
+        BoundedCache<String, String> cache = new BoundedCache<String, String>("test", 100, 10000, 10, LENGTH);
+        cache.put("a", "1");
+        Thread.sleep(50);
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.getExpirations());
+    }
+
+    @Test
+    public void listenerSeesEveryRemoval() {
+        BoundedCache<String, String> cache = newCache(16, 100000, null);
+        final List<String> removed = new ArrayList<String>();
+        cache.setRemovalListener(new BoundedCache.RemovalListener<String, String>() {
+
+            @Override
+            public void onRemoval(String key, String value) {
+                removed.add(key);
+            }
+        });
+        for (int i = 0; i < 1000; i++) {
+            cache.put("key" + i, "v");
+        }
+        cache.remove("key999");
+        assertEquals(1000, removed.size() + cache.size());
+        assertTrue(removed.contains("key999"));
+        cache.clear();
+        assertEquals(1000, removed.size());
+    }
+
+    @Test
+    public void overTheBudgetACacheEvictsItsOwnEntries() {
+        BoundedCache.Budget budget = new BoundedCache.Budget(1000);
+        BoundedCache<String, String> a = newCache(100000, 100000, budget);
+        BoundedCache<String, String> b = newCache(100000, 100000, budget);
+        for (int i = 0; i < 100; i++) {
+            a.put("key" + i, "0123456789");
+        }
+        assertEquals(1000, budget.getUsed());
+        for (int i = 0; i < 100; i++) {
+            b.put("key" + i, "0123456789");
+        }
+        // every put of b gives back what it took, a stays whole
+        assertEquals(100, a.size());
+        assertTrue(b.size() <= SEGMENTS);
+        assertEquals(a.weight() + b.weight(), budget.getUsed());
+    }
+
+    private static BoundedCache<String, String> newCache(int maxEntries, long maxWeight, BoundedCache.Budget budget) {
+        return new BoundedCache<String, String>("test", maxEntries, maxWeight, Long.MAX_VALUE, LENGTH, budget);
+    }
+}
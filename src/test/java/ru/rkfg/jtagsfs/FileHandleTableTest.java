@@ -0,0 +1,77 @@
+package ru.rkfg.jtagsfs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FileHandleTableTest {
+
+    private FileHandleTable table = FileHandleTable.INSTANCE;
+
+    @Test
+    public void registeredHandlesAreFound() {
+        int size = table.size();
+        FileHandle first = newHandle();
+        FileHandle second = newHandle();
+        long fh1 = table.register(first);
+        long fh2 = table.register(second);
+        try {
+            assertTrue(fh1 != 0 && fh2 != 0 && fh1 != fh2);
+            assertEquals(fh1, first.getFh());
+            assertSame(first, table.get(fh1));
+            assertSame(second, table.get(fh2));
+            assertEquals(size + 2, table.size());
+        } finally {
+            assertSame(first, table.remove(fh1));
+            assertSame(second, table.remove(fh2));
+        }
+        assertNull(table.get(fh1));
+        assertNull(table.remove(fh1));
+        assertEquals(size, table.size());
+    }
+
+    @Test
+    public void reusedSlotRefusesTheStaleNumber() {
+        long stale = table.register(newHandle());
+        table.remove(stale);
+        FileHandle handle = newHandle();
+        long fh = table.register(handle);
+        try {
+            // the same slot with another sequence number
+            assertEquals((int) stale, (int) fh);
+            assertNull(table.get(stale));
+            assertNull(table.remove(stale));
+            assertSame(handle, table.get(fh));
+        } finally {
+            table.remove(fh);
+        }
+    }
+
+    @Test
+    public void invalidNumbers() {
+        assertNull(table.get(0));
+        assertNull(table.get(-1));
+        assertNull(table.get(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void growsPastTheInitialSize() {
+        long[] fhs = new long[200];
+        try {
+            for (int i = 0; i < fhs.length; i++) {
+                fhs[i] = table.register(newHandle());
+            }
+            for (long fh : fhs) {
+                assertEquals(fh, table.get(fh).getFh());
+            }
+        } finally {
+            for (long fh : fhs) {
+                table.remove(fh);
+            }
+        }
+    }
+
+    private static FileHandle newHandle() {
+        return new FileHandle(null, Filepath.parse("/a/@/file"), "/a/@/file", null);
+    }
+}
@@ -0,0 +1,80 @@
+package ru.rkfg.jtagsfs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FilepathTest {
+
+    @Test
+    public void root() {
+        Filepath filepath = Filepath.parse("/");
+        assertEquals(0, filepath.getPathLength());
+        assertNull(filepath.getName());
+        assertEquals("", filepath.getPathLast());
+        assertFalse(filepath.isContent());
+    }
+
+    @Test
+    public void tagPath() {
+        Filepath filepath = Filepath.parse("/a/b");
+        assertArrayEquals(new String[] { "a", "b" }, filepath.getPath());
+        assertNull(filepath.getName());
+        assertTrue(filepath.isTagPath());
+        assertEquals("a/b", filepath.getPathKey());
+        assertFalse(Filepath.parse("/a/_").isTagPath());
+    }
+
+    @Test
+    public void content() {
+        Filepath content = Filepath.parse("/a/b/@");
+        assertTrue(content.isContent());
+        assertFalse(content.isContentWithTags());
+        assertArrayEquals(new String[] { "a", "b" }, content.getPath());
+        Filepath withTags = Filepath.parse("/a/@@");
+        assertTrue(withTags.isContent());
+        assertTrue(withTags.isContentWithTags());
+        assertArrayEquals(new String[] { "a" }, withTags.getPath());
+    }
+
+    @Test
+    public void fileName() {
+        Filepath filepath = Filepath.parse("/a/b/@/12|_|file.txt");
+        assertArrayEquals(new String[] { "a", "b" }, filepath.getPath());
+        assertEquals("12|_|file.txt", filepath.getName());
+        assertEquals("file.txt", filepath.getStrippedFilename());
+        assertFalse(filepath.isContent());
+        assertEquals("a/b/@/12|_|file.txt", filepath.asStringPath());
+        // @@ paths are the same files as the @ ones
+        assertEquals(filepath, Filepath.parse("/a/b/@@/12|_|file.txt"));
+        Filepath untagged = Filepath.parse("/@/file");
+        assertEquals(0, untagged.getPathLength());
+        assertEquals("file", untagged.getName());
+    }
+
+    @Test
+    public void componentsAreShared() {
+        String first = Filepath.parse("/shared/x").getPath()[0];
+        String second = Filepath.parse("/shared/y").getPath()[0];
+        assertSame(first, second);
+    }
+
+    @Test
+    public void stripAndUp() {
+        Filepath filepath = Filepath.parse("/tags/a/b/@/file");
+        Filepath stripped = filepath.strip(1);
+        assertArrayEquals(new String[] { "a", "b" }, stripped.getPath());
+        assertEquals("file", stripped.getName());
+        assertSame(filepath, filepath.strip(0));
+        assertArrayEquals(new String[] { "tags", "a" }, filepath.up(1).getPath());
+        assertEquals(0, filepath.strip(5).getPathLength());
+    }
+
+    @Test
+    public void tagsList() {
+        Filepath filepath = Filepath.parse("/a/@/file.tags");
+        assertTrue(filepath.isTagsListPath());
+        assertEquals("file", filepath.withoutTagslistExt().getName());
+        assertFalse(Filepath.parse("/a/@/file").isTagsListPath());
+    }
+}
@@ -0,0 +1,35 @@
+package ru.rkfg.jtagsfs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void countsUpToFifteen() {
+        FrequencySketch sketch = new FrequencySketch(512);
+        assertEquals(0, sketch.frequency(42));
+        for (int i = 0; i < 5; i++) {
+            sketch.increment(42);
+        }
+        assertEquals(5, sketch.frequency(42));
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(42);
+        }
+        assertEquals(15, sketch.frequency(42));
+    }
+
+    @Test
+    public void popularityFades() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment(-1);
+        }
+        // enough other increments to reach the sample size halve the counters
+        for (int i = 0; i < 10 * 16; i++) {
+            sketch.increment(i);
+        }
+        assertTrue(sketch.frequency(-1) <= 4);
+    }
+}
@@ -0,0 +1,103 @@
+package ru.rkfg.jtagsfs;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class IdBitmapTest {
+
+    @Test
+    public void addRemoveAndContains() {
+        IdBitmap bitmap = new IdBitmap();
+        assertTrue(bitmap.isEmpty());
+        bitmap.add(5);
+        bitmap.add(5);
+        bitmap.add(1L << 20);
+        assertEquals(2, bitmap.cardinality());
+        assertTrue(bitmap.contains(5));
+        assertTrue(bitmap.contains(1L << 20));
+        assertFalse(bitmap.contains(6));
+        bitmap.remove(5);
+        bitmap.remove(7);
+        assertEquals(1, bitmap.cardinality());
+        assertFalse(bitmap.contains(5));
+        bitmap.remove(1L << 20);
+        assertTrue(bitmap.isEmpty());
+    }
+
+    @Test
+    public void denseContainerKeepsTheCardinality() {
+        // more than an array container holds, it becomes a bitmap and back
+        IdBitmap bitmap = new IdBitmap();
+        for (long id = 0; id < 10000; id++) {
+            bitmap.add(id * 2);
+        }
+        assertEquals(10000, bitmap.cardinality());
+        assertTrue(bitmap.contains(19998));
+        assertFalse(bitmap.contains(19999));
+        for (long id = 0; id < 9000; id++) {
+            bitmap.remove(id * 2);
+        }
+        assertEquals(1000, bitmap.cardinality());
+        assertFalse(bitmap.contains(0));
+        assertTrue(bitmap.contains(18000));
+    }
+
+    @Test
+    public void setOperations() {
+        IdBitmap a = of(1, 2, 3, 70000, 140000);
+        IdBitmap b = of(2, 3, 4, 140000, 200000);
+        assertEquals(ids(2, 3, 140000), list(a.and(b)));
+        assertEquals(ids(1, 2, 3, 4, 70000, 140000, 200000), list(a.or(b)));
+        assertEquals(ids(1, 70000), list(a.andNot(b)));
+        // the operands stay the same
+        assertEquals(ids(1, 2, 3, 70000, 140000), list(a));
+        assertEquals(5, b.cardinality());
+        assertEquals(3, a.and(b).cardinality());
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        IdBitmap a = of(1, 2);
+        IdBitmap copy = a.copy();
+        copy.add(3);
+        a.remove(1);
+        assertEquals(ids(2), list(a));
+        assertEquals(ids(1, 2, 3), list(copy));
+    }
+
+    @Test
+    public void iteratesInOrder() {
+        IdBitmap bitmap = of(65536, 0xFFFF, 3, 1L << 32);
+        assertEquals(ids(3, 0xFFFF, 65536, 1L << 32), list(bitmap));
+        assertFalse(new IdBitmap().iterator().hasNext());
+    }
+
+    private static IdBitmap of(long... ids) {
+        IdBitmap bitmap = new IdBitmap();
+        for (long id : ids) {
+            bitmap.add(id);
+        }
+        return bitmap;
+    }
+
+    private static List<Long> ids(long... ids) {
+        List<Long> result = new ArrayList<Long>();
+        for (long id : ids) {
+            result.add(id);
+        }
+        return result;
+    }
+
+    private static List<Long> list(IdBitmap bitmap) {
+        List<Long> result = new ArrayList<Long>();
+        IdBitmap.IdIterator iterator = bitmap.iterator();
+        while (iterator.hasNext()) {
+            result.add(iterator.next());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,62 @@
+package ru.rkfg.jtagsfs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class NegativeCacheTest {
+
+    private NegativeCache cache = new NegativeCache(1600, 1 << 20, Long.MAX_VALUE, null);
+
+    @Test
+    public void remembersMisses() {
+        assertFalse(cache.contains("file", "/a/@/file"));
+        cache.add("file", "/a/@/file", cache.getEpoch());
+        assertTrue(cache.contains("file", "/a/@/file"));
+        assertFalse(cache.contains("file", "/b/@/file"));
+    }
+
+    @Test
+    public void missOfAnOldLookupIsIgnored() {
+        long epoch = cache.getEpoch();
+        cache.invalidate("other");
+        cache.add("file", "/a/@/file", epoch);
+        assertFalse(cache.contains("file", "/a/@/file"));
+    }
+
+    @Test
+    public void invalidationDropsAllPathsOfTheName() {
+        cache.add("file", "/a/@/file", cache.getEpoch());
+        cache.add("file", "/b/@/file", cache.getEpoch());
+        cache.add("other", "/a/@/other", cache.getEpoch());
+        cache.invalidate("file");
+        assertFalse(cache.contains("file", "/a/@/file"));
+        assertFalse(cache.contains("file", "/b/@/file"));
+        assertTrue(cache.contains("other", "/a/@/other"));
+        cache.clear();
+        assertFalse(cache.contains("other", "/a/@/other"));
+    }
+
+    @Test
+    public void remembersTheLatestPathsOfAName() {
+        for (int i = 0; i < 20; i++) {
+            cache.add("file", "/" + i + "/@/file", cache.getEpoch());
+        }
+        assertFalse(cache.contains("file", "/0/@/file"));
+        assertTrue(cache.contains("file", "/19/@/file"));
+    }
+
+    @Test
+    public void missAddedAgainSurvivesTheFilterRotation() {
+        cache.add("file", "/a/@/file", cache.getEpoch());
+        // two generations of the filter are filled with other misses
+        for (int i = 0; i < 2 * 1600 + 1; i++) {
+            cache.add("name" + i, "/a/@/name" + i, cache.getEpoch());
+            // keeps the name in the LRU
+            cache.getCache().get("file");
+        }
+        assertFalse(cache.contains("file", "/a/@/file"));
+        cache.add("file", "/a/@/file", cache.getEpoch());
+        assertTrue(cache.contains("file", "/a/@/file"));
+    }
+}
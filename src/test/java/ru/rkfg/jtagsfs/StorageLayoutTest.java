@@ -0,0 +1,62 @@
+package ru.rkfg.jtagsfs;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class StorageLayoutTest {
+
+    private File root = new File("storage");
+
+    @Test
+    public void parsesTheDescriptors() {
+        assertSame(StorageLayout.LEGACY, StorageLayout.parse("legacy"));
+        assertSame(StorageLayout.ID, StorageLayout.parse(" id\n"));
+        assertEquals(new StorageLayout.Hashed(2, 256), StorageLayout.parse("hashed:2x256"));
+        assertEquals("hashed:2x256", StorageLayout.parse("hashed:2x256").getDescriptor());
+    }
+
+    @Test
+    public void refusesUnknownDescriptors() {
+        for (String descriptor : new String[] { "", "hashed", "hashed:2", "hashed:ax2", "hashed:0x16", "hashed:1x1",
+                "other" }) {
+            try {
+                StorageLayout.parse(descriptor);
+                fail("parsed " + descriptor);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void legacyAndIdFiles() {
+        assertEquals(new File(root, "234" + File.separator + "1234|_|file.txt"),
+                StorageLayout.LEGACY.getFile(root, 1234, "file.txt"));
+        assertEquals(new File(root, "234" + File.separator + "1234"), StorageLayout.ID.getFile(root, 1234, "file.txt"));
+    }
+
+    @Test
+    public void hashedFilesAreSpread() {
+        StorageLayout layout = new StorageLayout.Hashed(2, 16);
+        Set<String> directories = new HashSet<String>();
+        for (long id = 0; id < 1000; id++) {
+            File file = layout.getFile(root, id, "file.txt");
+            assertEquals(String.valueOf(id), file.getName());
+            // the name doesn't matter
+            assertEquals(file, layout.getFile(root, id, "other"));
+            File level2 = file.getParentFile();
+            File level1 = level2.getParentFile();
+            assertEquals(root, level1.getParentFile());
+            assertEquals(1, level1.getName().length());
+            directories.add(level1.getName());
+        }
+        assertEquals(16, directories.size());
+        // a directory name of a wider fanout is padded
+        assertEquals(2, new StorageLayout.Hashed(1, 256).getFile(root, 7, "").getParentFile().getName().length());
+    }
+}
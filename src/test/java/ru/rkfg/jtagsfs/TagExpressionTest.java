@@ -0,0 +1,41 @@
+package ru.rkfg.jtagsfs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TagExpressionTest {
+
+    @Test
+    public void equivalentPathsHaveTheSameKey() {
+        assertEquals(parse("a", "b").getKey(), parse("b", "a").getKey());
+        assertEquals(parse("a", "_", "c", "+", "b").getKey(), parse("b", "+", "_", "c", "a").getKey());
+        assertFalse(parse("a", "_", "b").getKey().equals(parse("b", "_", "a").getKey()));
+        assertFalse(parse("a", "b").getKey().equals(parse("a", "+", "b").getKey()));
+    }
+
+    @Test
+    public void groupsOfIncludedAndExcludedTags() {
+        TagExpression expression = parse("b", "a", "_", "c", "+", "d", "@", "e");
+        TagExpression.Group[] groups = expression.getGroups();
+        assertEquals(2, groups.length);
+        assertArrayEquals(new String[] { "a", "b" }, groups[0].getIncluded());
+        assertArrayEquals(new String[] { "c" }, groups[0].getExcluded());
+        assertArrayEquals(new String[] { "d" }, groups[1].getIncluded());
+        assertEquals(0, groups[1].getExcluded().length);
+        // the names after the content marker aren't tags
+        assertArrayEquals(new String[] { "a", "b", "c", "d" }, expression.getTagNames());
+    }
+
+    @Test
+    public void emptyPath() {
+        TagExpression expression = parse();
+        assertEquals(1, expression.getGroups().length);
+        assertTrue(expression.getGroups()[0].isEmpty());
+        assertEquals("", expression.getKey());
+    }
+
+    private static TagExpression parse(String... path) {
+        return TagExpression.parse(path);
+    }
+}
@@ -0,0 +1,107 @@
+package ru.rkfg.jtagsfs;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteBufferTest {
+
+    // every test releases its buffers so the next one gets a new one of the same file
+    private static final long ID = 1000000;
+
+    private Charset charset = Charset.forName("utf-8");
+    private int flushSize;
+    private File data;
+    private LockableFile first;
+    private LockableFile second;
+
+    @Before
+    public void setUp() throws IOException {
+        flushSize = WriteBuffer.getFlushSize();
+        WriteBuffer.setFlushSize(8);
+        data = File.createTempFile("writebuffer", ".dat");
+        // not registered as open, nothing is saved
+        FileAttributes attributes = FileAttributes.of(new CachedFile(data.getName(), ID, 0L, 0L, 0L));
+        // two paths of the same file
+        first = new LockableFile(new RandomAccessFile(data, "rw"), ID, attributes);
+        second = new LockableFile(new RandomAccessFile(data, "rw"), ID, attributes);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        first.getFile().close();
+        second.getFile().close();
+        data.delete();
+        WriteBuffer.setFlushSize(flushSize);
+    }
+
+    @Test
+    public void directWriteFlushesOlderBufferedWrites() throws IOException {
+        WriteBuffer handle1 = WriteBuffer.acquire(first);
+        WriteBuffer handle2 = WriteBuffer.acquire(second);
+        try {
+            handle1.write(first, bytes("aaaa"), 0);
+            handle2.write(second, bytes("bbbbbbbb"), 0);
+        } finally {
+            handle1.release();
+            handle2.release();
+        }
+        assertEquals("bbbbbbbb", read());
+    }
+
+    @Test
+    public void bufferedWritesOfHandlesKeepTheirOrder() throws IOException {
+        WriteBuffer handle1 = WriteBuffer.acquire(first);
+        WriteBuffer handle2 = WriteBuffer.acquire(second);
+        try {
+            handle1.write(first, bytes("aaaa"), 0);
+            handle2.write(second, bytes("bb"), 1);
+            handle1.write(first, bytes("c"), 2);
+            WriteBuffer.flushFile(ID);
+            assertEquals("abca", read());
+        } finally {
+            handle1.release();
+            handle2.release();
+        }
+    }
+
+    @Test
+    public void failedReleaseDropsTheBufferedData() throws IOException {
+        long used = WriteBuffer.getUsed();
+        WriteBuffer handle = WriteBuffer.acquire(first);
+        handle.write(first, bytes("aaaa"), 0);
+        first.getFile().close();
+        try {
+            handle.release();
+            fail("the write to a closed file succeeded");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(used, WriteBuffer.getUsed());
+        // nothing is left to retry
+        WriteBuffer.flushFile(ID);
+    }
+
+    private ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(charset));
+    }
+
+    private String read() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(data, "r");
+        try {
+            byte[] result = new byte[(int) file.length()];
+            file.readFully(result);
+            return new String(result, charset);
+        } finally {
+            file.close();
+        }
+    }
+}